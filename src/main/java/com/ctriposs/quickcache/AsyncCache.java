@@ -0,0 +1,378 @@
+package com.ctriposs.quickcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ctriposs.quickcache.storage.Meta;
+
+/**
+ * Runs the operations of a cache on an I/O executor, so the calling threads never block on the storage.
+ *
+ * Operations are queued and applied in the order submitted by a single drainer on the executor. Consecutive
+ * operations of a kind are applied as one batch, gets through {@link ICache#getAll}, puts with the same time
+ * to idle through {@link ICache#putAll} and deletes through {@link ICache#deleteAll}, so a burst of operations
+ * costs a few I/O submissions. Each operation completes a future and notifies an optional callback; cancelling
+ * a future before its operation is applied withdraws the operation.
+ *
+ * @param <K> the key type
+ */
+public class AsyncCache<K> implements Closeable {
+
+	/** The default number of operations applied in a batch. */
+	public static final int DEFAULT_MAX_BATCH = 128;
+
+	private final ICache<K> cache;
+
+	private final ExecutorService executor;
+
+	/** Whether the executor is shut down on close. */
+	private final boolean ownExecutor;
+
+	private final int maxBatch;
+
+	private final Queue<Operation<K>> operations = new ConcurrentLinkedQueue<Operation<K>>();
+
+	/** Whether a drainer is scheduled or running. */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Instantiates an async cache on a dedicated I/O thread.
+	 *
+	 * @param cache the cache
+	 */
+	public AsyncCache(ICache<K> cache) {
+		this(cache, Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "quickcache-async-io");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), true, DEFAULT_MAX_BATCH);
+	}
+
+	/**
+	 * Instantiates an async cache on the specified executor, which is left running on close.
+	 *
+	 * @param cache the cache
+	 * @param executor the I/O executor
+	 * @param maxBatch the number of operations applied in a batch
+	 */
+	public AsyncCache(ICache<K> cache, ExecutorService executor, int maxBatch) {
+		this(cache, executor, false, maxBatch);
+	}
+
+	private AsyncCache(ICache<K> cache, ExecutorService executor, boolean ownExecutor, int maxBatch) {
+		if (maxBatch <= 0) {
+			throw new IllegalArgumentException("maxBatch must be > 0!");
+		}
+		this.cache = cache;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Gets the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the future of the value, null if there is no value
+	 */
+	public Future<byte[]> getAsync(K key) {
+		return getAsync(key, null);
+	}
+
+	/**
+	 * Gets the value with the specified key.
+	 *
+	 * @param key the key
+	 * @param callback notified with the value, null if there is no value
+	 * @return the future of the value, null if there is no value
+	 */
+	public Future<byte[]> getAsync(K key, ICacheCallback<byte[]> callback) {
+		checkKey(key);
+		OperationFuture<byte[]> future = new OperationFuture<byte[]>(callback);
+		submit(new Operation<K>(Kind.GET, key, null, 0, future));
+		return future;
+	}
+
+	/**
+	 * Puts the value with the specified key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the future, done once the value is put
+	 */
+	public Future<Void> putAsync(K key, byte[] value) {
+		return putAsync(key, value, Meta.TTL_NEVER_EXPIRE, null);
+	}
+
+	/**
+	 * Puts the value with the specified key and time to idle in milliseconds.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to idle value in milliseconds
+	 * @param callback notified once the value is put, may be null
+	 * @return the future, done once the value is put
+	 */
+	public Future<Void> putAsync(K key, byte[] value, long ttl, ICacheCallback<Void> callback) {
+		checkKey(key);
+		if (value == null || value.length > QuickCache.MAX_VALUE_LENGTH) {
+			// checked here, a batch fails as a whole
+			throw new IllegalArgumentException("value is null or too long");
+		}
+		OperationFuture<Void> future = new OperationFuture<Void>(callback);
+		submit(new Operation<K>(Kind.PUT, key, value, ttl, future));
+		return future;
+	}
+
+	/**
+	 * Delete the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the future, done once the value is deleted
+	 */
+	public Future<Void> deleteAsync(K key) {
+		return deleteAsync(key, null);
+	}
+
+	/**
+	 * Delete the value with the specified key.
+	 *
+	 * @param key the key
+	 * @param callback notified once the value is deleted, may be null
+	 * @return the future, done once the value is deleted
+	 */
+	public Future<Void> deleteAsync(K key, ICacheCallback<Void> callback) {
+		checkKey(key);
+		OperationFuture<Void> future = new OperationFuture<Void>(callback);
+		submit(new Operation<K>(Kind.DELETE, key, null, 0, future));
+		return future;
+	}
+
+	private void checkKey(K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key is null");
+		}
+	}
+
+	private void submit(Operation<K> operation) {
+		if (closed) {
+			operation.future.fail(new IllegalStateException("closed"));
+			return;
+		}
+		operations.offer(operation);
+		schedule();
+	}
+
+	private void schedule() {
+		if (draining.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainer);
+			} catch (RejectedExecutionException e) {
+				// the executor is shut down, nothing will apply the queued operations
+				draining.set(false);
+				Operation<K> operation;
+				while ((operation = operations.poll()) != null) {
+					operation.future.fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the queued operations batch by batch until the queue is empty.
+	 */
+	private void drain() {
+		try {
+			Operation<K> operation = operations.poll();
+			while (operation != null) {
+				Operation<K> next = applyBatch(operation);
+				operation = next != null ? next : operations.poll();
+			}
+		} finally {
+			draining.set(false);
+		}
+		// queued after the last poll
+		if (!operations.isEmpty()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Applies the batch of operations starting with the specified one.
+	 *
+	 * @return the operation polled which does not belong to the batch, null if none
+	 */
+	private Operation<K> applyBatch(Operation<K> first) {
+		List<Operation<K>> batch = new ArrayList<Operation<K>>();
+		batch.add(first);
+		Operation<K> next = null;
+		while (batch.size() < maxBatch && (next = operations.poll()) != null) {
+			if (next.kind != first.kind || next.ttl != first.ttl) {
+				break;
+			}
+			batch.add(next);
+			next = null;
+		}
+
+		List<K> keys = new ArrayList<K>(batch.size());
+		for (Operation<K> operation : batch) {
+			// cancelled before applied
+			if (!operation.future.isDone()) {
+				keys.add(operation.key);
+			}
+		}
+		try {
+			switch (first.kind) {
+				case GET:
+					Map<K, byte[]> values = keys.isEmpty() ? null : cache.getAll(keys);
+					for (Operation<K> operation : batch) {
+						operation.future.complete(values == null ? null : values.get(operation.key));
+					}
+					break;
+				case PUT:
+					Map<K, byte[]> entries = new LinkedHashMap<K, byte[]>();
+					for (Operation<K> operation : batch) {
+						if (!operation.future.isDone()) {
+							entries.put(operation.key, operation.value);
+						}
+					}
+					if (!entries.isEmpty()) {
+						cache.putAll(entries, first.ttl);
+					}
+					completeAll(batch);
+					break;
+				case DELETE:
+					if (!keys.isEmpty()) {
+						cache.deleteAll(keys);
+					}
+					completeAll(batch);
+					break;
+			}
+		} catch (Throwable t) {
+			for (Operation<K> operation : batch) {
+				operation.future.fail(t);
+			}
+		}
+		return next;
+	}
+
+	private void completeAll(List<Operation<K>> batch) {
+		for (Operation<K> operation : batch) {
+			operation.future.complete(null);
+		}
+	}
+
+	/**
+	 * Stops taking operations, waiting for those queued to be applied if the executor is owned.
+	 * The cache is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (ownExecutor) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private enum Kind {
+		GET,
+		PUT,
+		DELETE
+	}
+
+	private static final class Operation<K> {
+		final Kind kind;
+		final K key;
+		final byte[] value;
+		final long ttl;
+		final OperationFuture<?> future;
+
+		Operation(Kind kind, K key, byte[] value, long ttl, OperationFuture<?> future) {
+			this.kind = kind;
+			this.key = key;
+			this.value = value;
+			this.ttl = ttl;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * A future completed by the drainer, notifying its callback once done.
+	 */
+	private static final class OperationFuture<V> extends FutureTask<V> {
+
+		private static final Runnable NOTHING = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		private final ICacheCallback<V> callback;
+
+		OperationFuture(ICacheCallback<V> callback) {
+			super(NOTHING, null);
+			this.callback = callback;
+		}
+
+		@SuppressWarnings("unchecked")
+		void complete(Object result) {
+			set((V) result);
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null) {
+				return;
+			}
+			try {
+				callback.onSuccess(get());
+			} catch (ExecutionException e) {
+				callback.onFailure(e.getCause());
+			} catch (CancellationException e) {
+				callback.onFailure(e);
+			} catch (InterruptedException e) {
+				// done, so get does not wait
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				// thrown by the callback, must not fail the rest of the batch
+			}
+		}
+	}
+}
@@ -15,6 +15,17 @@ public class CacheConfig {
     private double dirtyRatioThreshold = QuickCache.DEFAULT_DIRTY_RATIO_THRESHOLD;
     private StorageMode storageMode = StorageMode.PureFile;
     private StartMode startMode = StartMode.ClearOldFile;
+    private IndexMode indexMode = IndexMode.Heap;
+    private int writeBufferSize = StorageManager.DEFAULT_WRITE_BUFFER_SIZE;
+    private Durability durability = Durability.None;
+    private long syncInterval = QuickCache.DEFAULT_SYNC_INTERVAL;
+    private long syncBytes = 0;
+    private long maxTotalCapacity = 0;
+    private int admissionSketchSize = 0;
+    private long nearCacheSize = 0;
+    private long refreshAheadTime = 0;
+    private int writeBehindQueueSize = 0;
+    private long maintenanceSliceTime = QuickCache.DEFAULT_MAINTENANCE_SLICE_TIME;
     
 	public int getCapacityPerBlock() {
 		return capacityPerBlock;
@@ -23,6 +34,19 @@ public class CacheConfig {
 	public int getConcurrencyLevel() {
 		return concurrencyLevel;
 	}
+
+	/**
+	 * Sets the expected number of concurrent writers, rounded up to a power of 2 for the number of segments
+	 * of the index and of the expiry schedule.
+	 */
+	public CacheConfig setConcurrencyLevel(int concurrencyLevel) {
+		if(concurrencyLevel <= 0){
+			throw new IllegalArgumentException("concurrencyLevel must be > 0!");
+		}
+		
+		this.concurrencyLevel = concurrencyLevel;
+		return this;
+	}
 	
 	public CacheConfig setCapacityPerBlock(int capacityPerBlock) {
 		if(capacityPerBlock < 16 * 1024 * 1024){
@@ -91,6 +115,103 @@ public class CacheConfig {
 		this.startMode = startMode;
 	}
 
+	public IndexMode getIndexMode() {
+		return indexMode;
+	}
+
+	/**
+	 * Selecting where the key index lives.
+	 * 
+	 * In OffHeap mode, each key takes a fixed {@link com.ctriposs.quickcache.storage.OffHeapIndex#SLOT_SIZE} bytes slot
+	 * outside of the java heap and keys are compared against the bytes in the storage blocks, so the index
+	 * puts no pressure on GC at the cost of reading the key on each lookup.
+	 * 
+	 * @param indexMode the index mode
+	 * @return CacheConfig
+	 */
+	public CacheConfig setIndexMode(IndexMode indexMode) {
+		this.indexMode = indexMode;
+		return this;
+	}
+
+	public int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+
+	/**
+	 * Buffering the writes of PureFile blocks.
+	 * 
+	 * Items are copied into a per block buffer and written to the file in large sequential writes instead of
+	 * one write per item, reads of buffered items are served from the buffer. Items still buffered are lost
+	 * if the process crashes, they are written when a block is sealed and on close.
+	 * 
+	 * @param writeBufferSize the buffer size per block, unit : byte, 0 writes each item straight to the file.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setWriteBufferSize(int writeBufferSize) {
+		if (writeBufferSize < 0) {
+			throw new IllegalArgumentException("writeBufferSize must be >= 0!");
+		}
+		this.writeBufferSize = writeBufferSize;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Selecting when stored items are forced to the disk.
+	 * 
+	 * None leaves it to the operating system, a crash of the machine may lose any item not forced at close.
+	 * Periodic forces every {@link #setSyncInterval(long)} milliseconds and every {@link #setSyncBytes(long)}
+	 * bytes stored, bounding what a crash may lose. SyncOnPut returns from put and delete once the item is on
+	 * the disk, concurrent puts to the same block share a single force.
+	 * 
+	 * @param durability the durability
+	 * @return CacheConfig
+	 */
+	public CacheConfig setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Only takes effect in Periodic durability, 0 disables the time based sync.
+	 * 
+	 * @param syncInterval the interval between two forces, unit : millisecond.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setSyncInterval(long syncInterval) {
+		if (syncInterval < 0) {
+			throw new IllegalArgumentException("syncInterval must be >= 0!");
+		}
+		this.syncInterval = syncInterval;
+		return this;
+	}
+
+	public long getSyncBytes() {
+		return syncBytes;
+	}
+
+	/**
+	 * Only takes effect in Periodic durability, 0 disables the size based sync.
+	 * 
+	 * @param syncBytes the bytes stored between two forces, unit : byte.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setSyncBytes(long syncBytes) {
+		if (syncBytes < 0) {
+			throw new IllegalArgumentException("syncBytes must be >= 0!");
+		}
+		this.syncBytes = syncBytes;
+		return this;
+	}
+
 	/**
 	 * Limiting Offheap memory usage.
 	 * 
@@ -111,6 +232,138 @@ public class CacheConfig {
 	public long getMaxOffHeapMemorySize() {
 		return this.maxOffHeapMemorySize;
 	}   
+
+	public long getMaxTotalCapacity() {
+		return maxTotalCapacity;
+	}
+
+	/**
+	 * Bounding the storage of all blocks.
+	 * 
+	 * Once no more block can be created within the bound, puts evict the oldest sealed block whole, unlinking
+	 * its items from the index, rather than creating a new one. Blocks are only created beyond the bound when
+	 * no block is sealed yet, or to store delete items and compacted items, so the bound should leave room
+	 * for the active blocks. The initial blocks are capped by the bound, and a recovery finding more data files
+	 * than the bound allows deletes the files written the longest ago.
+	 * 
+	 * @param maxTotalCapacity the capacity of all blocks, unit : byte, 0 for unbounded.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setMaxTotalCapacity(long maxTotalCapacity) {
+		if (maxTotalCapacity < 0) {
+			throw new IllegalArgumentException("maxTotalCapacity must be >= 0!");
+		}
+		this.maxTotalCapacity = maxTotalCapacity;
+		return this;
+	}
+
+	public long getNearCacheSize() {
+		return nearCacheSize;
+	}
+
+	/**
+	 * Keeping the values of hot keys on heap.
+	 * 
+	 * Values got are copied into a near cache bounded by size and evicted by CLOCK, so gets of hot keys skip
+	 * the index and the storage. Puts, deletes, expiration, migration and eviction invalidate the keys
+	 * changed. Leases are not served from the near cache.
+	 * 
+	 * @param nearCacheSize the size of the near cache, unit : byte, 0 for none.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setNearCacheSize(long nearCacheSize) {
+		if (nearCacheSize < 0) {
+			throw new IllegalArgumentException("nearCacheSize must be >= 0!");
+		}
+		this.nearCacheSize = nearCacheSize;
+		return this;
+	}
+
+	public long getRefreshAheadTime() {
+		return refreshAheadTime;
+	}
+
+	/**
+	 * Reloading values close to expiring in the background.
+	 * 
+	 * A get with a loader of a value expiring within this time returns the value and has it loaded again
+	 * on a background thread, so hot keys are put anew before they expire rather than missed by every caller.
+	 * 
+	 * @param refreshAheadTime the time before expiring, unit : millisecond, 0 for none.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setRefreshAheadTime(long refreshAheadTime) {
+		if (refreshAheadTime < 0) {
+			throw new IllegalArgumentException("refreshAheadTime must be >= 0!");
+		}
+		this.refreshAheadTime = refreshAheadTime;
+		return this;
+	}
+
+	public int getWriteBehindQueueSize() {
+		return writeBehindQueueSize;
+	}
+
+	/**
+	 * Applying puts and deletes in the background.
+	 * 
+	 * Puts and deletes return once queued, gets see the queued writes at once, and a background appender
+	 * stores them in batches in the order made. A put waits while the queue is full. Writes still queued are
+	 * lost if the process crashes, {@link QuickCache#flush()} waits for those made before, and close applies
+	 * them all.
+	 * 
+	 * @param writeBehindQueueSize the number of writes queued at most, 0 applies each write before returning.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setWriteBehindQueueSize(int writeBehindQueueSize) {
+		if (writeBehindQueueSize < 0) {
+			throw new IllegalArgumentException("writeBehindQueueSize must be >= 0!");
+		}
+		this.writeBehindQueueSize = writeBehindQueueSize;
+		return this;
+	}
+
+	public long getMaintenanceSliceTime() {
+		return maintenanceSliceTime;
+	}
+
+	/**
+	 * Sets the time an expiry or a migration runs for at most before yielding, it resumes where it stopped
+	 * on its next run. The time is shortened while the foreground load rises, down to a sixteenth of it.
+	 * 
+	 * @param maintenanceSliceTime the time of a slice, unit : millisecond, 0 to run to completion.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setMaintenanceSliceTime(long maintenanceSliceTime) {
+		if (maintenanceSliceTime < 0) {
+			throw new IllegalArgumentException("maintenanceSliceTime must be >= 0!");
+		}
+		this.maintenanceSliceTime = maintenanceSliceTime;
+		return this;
+	}
+
+	public int getAdmissionSketchSize() {
+		return admissionSketchSize;
+	}
+
+	/**
+	 * Filtering the puts of new keys once the capacity bound is reached.
+	 * 
+	 * Gets and puts are counted in a frequency sketch which is aged periodically. At capacity, a put of a key
+	 * not in the cache is dropped unless the key has been accessed more often than the items of the last block
+	 * evicted, so keys seen once do not push out the popular ones. Only takes effect with
+	 * {@link #setMaxTotalCapacity(long)}.
+	 * 
+	 * @param admissionSketchSize the number of keys the sketch is sized for, 0 admits all puts.
+	 * @return CacheConfig
+	 */
+	public CacheConfig setAdmissionSketchSize(int admissionSketchSize) {
+		if (admissionSketchSize < 0) {
+			throw new IllegalArgumentException("admissionSketchSize must be >= 0!");
+		}
+		this.admissionSketchSize = admissionSketchSize;
+		return this;
+	}
 	
 	public enum StorageMode {
 		PureFile,
@@ -122,4 +375,15 @@ public class CacheConfig {
 		ClearOldFile,
 		RecoveryFromFile
 	}
+	
+	public enum IndexMode {
+		Heap,
+		OffHeap
+	}
+	
+	public enum Durability {
+		None,
+		Periodic,
+		SyncOnPut
+	}
 }
@@ -1,10 +1,13 @@
 package com.ctriposs.quickcache;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.ctriposs.quickcache.CacheConfig.StorageMode;
 import com.ctriposs.quickcache.storage.Item;
+import com.ctriposs.quickcache.storage.Meta;
 import com.ctriposs.quickcache.storage.Pointer;
 
 public interface IBlock extends Comparable<IBlock>, Closeable {
@@ -17,6 +20,33 @@ public interface IBlock extends Comparable<IBlock>, Closeable {
      */
     byte[] retrieve(Pointer pointer) throws IOException;
 
+    /**
+     * Retrieves the key of the item associated with the pointer.
+     *
+     * @param pointer the pointer
+     * @return the key
+     * @throws IOException
+     */
+    byte[] retrieveKey(Pointer pointer) throws IOException;
+
+    /**
+     * Retrieves the payload associated with the pointer into the remaining space of dest.
+     *
+     * @param pointer the pointer
+     * @param dest the destination, with at least the value size remaining
+     * @throws IOException
+     */
+    void retrieve(Pointer pointer, ByteBuffer dest) throws IOException;
+
+    /**
+     * Retrieves a read-only view of the payload associated with the pointer, without copying it.
+     * The view is only valid while the block is retained.
+     *
+     * @param pointer the pointer
+     * @return the view, or null if the block is not held in memory
+     */
+    ByteBuffer retrieveView(Pointer pointer);
+
 	
 	/**
 	 * Stores the payload.
@@ -29,6 +59,17 @@ public interface IBlock extends Comparable<IBlock>, Closeable {
 	 */
 	Pointer store(byte[] key, byte[] value, long ttl) throws IOException;
 	
+	/**
+	 * Stores the payloads next to each other, written with a single put to the underlying storage.
+	 *
+	 * @param keys the keys
+	 * @param values the data, one per key
+	 * @param ttl time-to-live of all
+	 * @return the pointers, one per key, null if not enough storage available for all of them
+	 * @throws IOException
+	 */
+	Pointer[] storeAll(byte[][] keys, byte[][] values, long ttl) throws IOException;
+	
 	/**
 	 *  Marks exSpace as dirty.
 	 * 
@@ -44,6 +85,54 @@ public interface IBlock extends Comparable<IBlock>, Closeable {
 	 */
 	Item readItem(int offset) throws IOException; 
 	
+	/**
+	 * Get meta of the item at the offset
+	 * 
+	 * @param offset the item offset
+	 * @return meta, or null if no item has been written there
+	 * @throws IOException
+	 */
+	Meta readMeta(int offset) throws IOException;
+	
+	/**
+	 * Reads raw bytes of the block.
+	 * 
+	 * @param offset the offset within the block
+	 * @param dest the destination
+	 * @param length the number of bytes to read
+	 * @throws IOException
+	 */
+	void readBytes(int offset, byte[] dest, int length) throws IOException;
+	
+	/**
+	 * Get the backing file of this storage block
+	 * 
+	 * @return the file, or null if the block is not backed by a file
+	 */
+	File getFile();
+	
+	/**
+	 * Writes the buffered items to the underlying storage, once the block is not appended to any more.
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+	
+	/**
+	 * Forces the items stored so far to the disk, concurrent callers share a single force.
+	 *
+	 * @throws IOException
+	 */
+	void sync() throws IOException;
+	
+	/**
+	 * Writes the hint file (meta and key of all items) of this block,
+	 * waiting for the in-flight stores to complete and syncing them first.
+	 * 
+	 * @throws IOException
+	 */
+	void writeHint() throws IOException;
+	
 	/**
 	 * Calculates and returns total size of the dirty space.
 	 *
@@ -87,6 +176,21 @@ public interface IBlock extends Comparable<IBlock>, Closeable {
 	 */
 	double getForeverRatio();
 	
+	/**
+	 * Get the time after which all the items stored in this block have expired
+	 * 
+	 * @return the time in milliseconds, Long.MAX_VALUE if an item never expires
+	 */
+	long getExpireTime();
+	
+	/**
+	 * Pushes the expire time of this block to cover an item loaded from the storage
+	 * 
+	 * @param lastAccessTime the last access time of the item
+	 * @param ttl the time to idle of the item
+	 */
+	void extendExpireTime(long lastAccessTime, long ttl);
+	
 	/**
 	 * Get mode of this storage block
 	 * 
@@ -95,8 +199,41 @@ public interface IBlock extends Comparable<IBlock>, Closeable {
 	StorageMode getStorageMode();
 	
 	/**
-	 * Frees the storage.
+	 * Prepares the storage to be appended to, before the block becomes active.
+	 * 
+	 * @throws IOException
+	 */
+	void prepare() throws IOException;
+	
+	/**
+	 * Frees the storage, deferred until the block is not retained any more.
 	 */
 	void free();
+
+	/**
+	 * Gets the number of times the block has been freed, a block freed since it was scanned holds other items.
+	 * 
+	 * @return the generation
+	 */
+	int getGeneration();
+	
+	/**
+	 * Retains the block, holding off any free until released.
+	 * 
+	 * @return false if the block is being freed, in which case it has not been retained
+	 */
+	boolean retain();
+	
+	/**
+	 * Releases the block retained, running the free deferred if this was the last retainer.
+	 */
+	void release();
+
+	/**
+	 * Whether the block is retained, or has a free waiting for its retainers.
+	 * 
+	 * @return true if a free would be deferred
+	 */
+	boolean isRetained();
 	
 }
@@ -2,6 +2,9 @@ package com.ctriposs.quickcache;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * The Interface ICache.
@@ -29,6 +32,23 @@ public interface ICache<K> extends Closeable {
 	 */
 	void put(K key, byte[] value, long ttl)  throws IOException;
 
+	/**
+	 * Puts the values with the specified keys, written next to each other at once.
+	 *
+	 * @param entries the values by key
+	 * @throws IOException
+	 */
+	void putAll(Map<? extends K, byte[]> entries) throws IOException;
+
+	/**
+	 * Puts the values with the specified keys and time to idle in milliseconds, written next to each other at once.
+	 *
+	 * @param entries the values by key
+	 * @param ttl the time to idle value in milliseconds
+	 * @throws IOException
+	 */
+	void putAll(Map<? extends K, byte[]> entries, long ttl) throws IOException;
+
 	/**
 	 * Gets the value with the specified key.
 	 *
@@ -38,6 +58,46 @@ public interface ICache<K> extends Closeable {
 	 */
 	byte[] get(K key) throws IOException;
 
+	/**
+	 * Gets the value with the specified key, loading and putting it if missing. Concurrent misses of a key
+	 * share a single load.
+	 *
+	 * @param key the key
+	 * @param loader the loader of the missing value
+	 * @param ttl the time to idle value in milliseconds of the value loaded
+	 * @return the value, null if there is none to load
+	 * @throws IOException the failure of the loader
+	 */
+	byte[] get(K key, ICacheLoader<K> loader, long ttl) throws IOException;
+
+	/**
+	 * Gets the value with the specified key into the remaining space of dst.
+	 *
+	 * @param key the key
+	 * @param dst the destination, its position is advanced by the value size
+	 * @return the value size, or -1 if there is no value; nothing is copied if dst has less remaining
+	 * @throws IOException
+	 */
+	int get(K key, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Gets the values with the specified keys, read in the order they are stored.
+	 *
+	 * @param keys the keys
+	 * @return the values by key, without the keys that have no value
+	 * @throws IOException
+	 */
+	Map<K, byte[]> getAll(Collection<? extends K> keys) throws IOException;
+
+	/**
+	 * Leases a read-only view of the value with the specified key, which must be closed once done with.
+	 *
+	 * @param key the key
+	 * @return the lease, or null if there is no value
+	 * @throws IOException
+	 */
+	ValueLease lease(K key) throws IOException;
+
 	/**
 	 * Delete the value with the specified key.
 	 *
@@ -47,6 +107,14 @@ public interface ICache<K> extends Closeable {
 	 */
 	byte[] delete(K key) throws IOException;
 	
+	/**
+	 * Delete the values with the specified keys.
+	 *
+	 * @param keys the keys
+	 * @throws IOException
+	 */
+	void deleteAll(Collection<? extends K> keys) throws IOException;
+	
 	/**
 	 * Check if Cache contains the specified key.
 	 *
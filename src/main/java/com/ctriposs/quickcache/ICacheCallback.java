@@ -0,0 +1,26 @@
+package com.ctriposs.quickcache;
+
+/**
+ * The Interface ICacheCallback, notified once an asynchronous operation completes.
+ *
+ * Called on the I/O thread of the {@link AsyncCache} after the future of the operation is done, it should
+ * hand any blocking work over.
+ *
+ * @param <V> the result type
+ */
+public interface ICacheCallback<V> {
+
+	/**
+	 * Called when the operation succeeded.
+	 *
+	 * @param result the result
+	 */
+	void onSuccess(V result);
+
+	/**
+	 * Called when the operation failed.
+	 *
+	 * @param t the failure
+	 */
+	void onFailure(Throwable t);
+}
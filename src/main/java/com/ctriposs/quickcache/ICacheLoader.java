@@ -0,0 +1,18 @@
+package com.ctriposs.quickcache;
+
+/**
+ * The Interface ICacheLoader, loading the values missing from the cache from the backing store.
+ *
+ * @param <K> the key type
+ */
+public interface ICacheLoader<K> {
+
+	/**
+	 * Loads the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the value, null if there is none, which is then not cached
+	 * @throws Exception
+	 */
+	byte[] load(K key) throws Exception;
+}
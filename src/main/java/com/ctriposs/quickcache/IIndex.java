@@ -0,0 +1,105 @@
+package com.ctriposs.quickcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.ctriposs.quickcache.storage.Pointer;
+import com.ctriposs.quickcache.storage.WrapperKey;
+
+/**
+ * The Interface IIndex which maps keys to the location of their items in the storage blocks.
+ *
+ * Pointers given to {@link #replace(WrapperKey, Pointer, Pointer)} and {@link #remove(WrapperKey, Pointer)}
+ * are compared by the location they point to.
+ */
+public interface IIndex extends Closeable {
+
+	/**
+	 * Gets the pointer of the specified key.
+	 *
+	 * @param key the key
+	 * @return the pointer, or null if absent
+	 * @throws IOException
+	 */
+	Pointer get(WrapperKey key) throws IOException;
+
+	/**
+	 * Puts the pointer with the specified key.
+	 *
+	 * @param key the key
+	 * @param pointer the pointer
+	 * @return the previous pointer, or null if absent
+	 * @throws IOException
+	 */
+	Pointer put(WrapperKey key, Pointer pointer) throws IOException;
+
+	/**
+	 * Puts the pointer only if the key is absent.
+	 *
+	 * @param key the key
+	 * @param pointer the pointer
+	 * @return the current pointer, or null if the pointer has been put
+	 * @throws IOException
+	 */
+	Pointer putIfAbsent(WrapperKey key, Pointer pointer) throws IOException;
+
+	/**
+	 * Replaces the pointer only if the key currently maps to the old pointer.
+	 *
+	 * @param key the key
+	 * @param oldPointer the expected pointer
+	 * @param newPointer the new pointer
+	 * @return true, if replaced
+	 * @throws IOException
+	 */
+	boolean replace(WrapperKey key, Pointer oldPointer, Pointer newPointer) throws IOException;
+
+	/**
+	 * Removes the specified key.
+	 *
+	 * @param key the key
+	 * @return the removed pointer, or null if absent
+	 * @throws IOException
+	 */
+	Pointer remove(WrapperKey key) throws IOException;
+
+	/**
+	 * Removes the key only if it currently maps to the pointer.
+	 *
+	 * @param key the key
+	 * @param pointer the expected pointer
+	 * @return true, if removed
+	 * @throws IOException
+	 */
+	boolean remove(WrapperKey key, Pointer pointer) throws IOException;
+
+	/**
+	 * Check if the index contains the specified key.
+	 *
+	 * @param key the key
+	 * @return true, if successful
+	 * @throws IOException
+	 */
+	boolean containsKey(WrapperKey key) throws IOException;
+
+	/**
+	 * Iterates all entries of the index, the iteration is weakly consistent.
+	 *
+	 * @return the iterator
+	 */
+	Iterator<Map.Entry<WrapperKey, Pointer>> iterator();
+
+	/**
+	 * Get the number of keys in the index.
+	 *
+	 * @return the count
+	 */
+	int size();
+
+	/**
+	 * Clear the index.
+	 */
+	void clear();
+}
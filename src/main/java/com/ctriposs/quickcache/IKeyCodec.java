@@ -0,0 +1,23 @@
+package com.ctriposs.quickcache;
+
+import java.io.IOException;
+
+/**
+ * The Interface IKeyCodec, encoding the keys of a cache into the bytes stored and indexed.
+ *
+ * Two keys must be encoded to equal bytes if and only if they are equal, and the encoding of a key must not
+ * change between runs, as the keys recovered from the blocks are matched by their bytes.
+ *
+ * @param <K> the key type
+ */
+public interface IKeyCodec<K> {
+
+	/**
+	 * Encodes the key.
+	 *
+	 * @param key the key, not null
+	 * @return the bytes, owned by the cache from then on
+	 * @throws IOException
+	 */
+	byte[] encode(K key) throws IOException;
+}
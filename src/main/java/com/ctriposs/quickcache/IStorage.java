@@ -2,6 +2,7 @@ package com.ctriposs.quickcache;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -19,6 +20,33 @@ public interface IStorage  extends Closeable {
 	 */
 	void get(int position, byte[] dest) throws IOException;
 	
+	/**
+	 * Gets length bytes from the specified location into dest starting at offset.
+	 *
+	 * @param position the position
+	 * @param dest the destination
+	 * @param offset the offset within the destination
+	 * @param length the number of bytes to get
+	 */
+	void get(int position, byte[] dest, int offset, int length) throws IOException;
+	
+	/**
+	 * Gets bytes from the specified location into the remaining space of dest.
+	 *
+	 * @param position the position
+	 * @param dest the destination, its position is advanced by the bytes got
+	 */
+	void get(int position, ByteBuffer dest) throws IOException;
+	
+	/**
+	 * Gets a read-only view of the bytes at the specified location, without copying them.
+	 *
+	 * @param position the position
+	 * @param length the number of bytes
+	 * @return the view, or null if the storage is not held in memory
+	 */
+	ByteBuffer slice(int position, int length);
+	
 	/**
 	 * Puts source to the specified location of the Storage.
 	 *
@@ -27,6 +55,43 @@ public interface IStorage  extends Closeable {
 	 */
 	void put(int position, byte[] source) throws IOException;
 	
+	/**
+	 * Puts an item, its meta followed by the key and the value, to the specified location of the Storage.
+	 *
+	 * @param position the position of the meta
+	 * @param lastAccessTime the last access time
+	 * @param ttl the ttl
+	 * @param key the key
+	 * @param value the value
+	 */
+	void putItem(int position, long lastAccessTime, long ttl, byte[] key, byte[] value) throws IOException;
+
+	/**
+	 * Puts items of the same last access time and ttl one after the other from the specified location.
+	 *
+	 * @param position the position of the meta of the first item
+	 * @param lastAccessTime the last access time
+	 * @param ttl the ttl
+	 * @param keys the keys
+	 * @param values the values
+	 */
+	void putItems(int position, long lastAccessTime, long ttl, byte[][] keys, byte[][] values) throws IOException;
+	
+	/**
+	 * Writes the bytes put but still buffered to the underlying file.
+	 */
+	void flush() throws IOException;
+	
+	/**
+	 * Forces the bytes put so far to the disk.
+	 */
+	void force() throws IOException;
+	
+	
+	/**
+	 * Prepares the storage to be appended to, so the first writes find its space in place.
+	 */
+	void prepare() throws IOException;
 	
 	/**
 	 * Frees the storage.
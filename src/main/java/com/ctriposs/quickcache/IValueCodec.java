@@ -0,0 +1,36 @@
+package com.ctriposs.quickcache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Interface IValueCodec, encoding the values of a {@link TypedQuickCache} into the bytes stored.
+ *
+ * @param <V> the value type
+ */
+public interface IValueCodec<V> {
+
+	/**
+	 * Gets the number of bytes the value is encoded in.
+	 *
+	 * @param value the value, not null
+	 * @return the size
+	 */
+	int size(V value);
+
+	/**
+	 * Encodes the value into dst, advancing its position by exactly {@link #size(Object)} bytes.
+	 *
+	 * @param value the value, not null
+	 * @param dst the destination
+	 */
+	void encode(V value, ByteBuffer dst);
+
+	/**
+	 * Decodes a value from the bytes between the position and the limit of src. The buffer may be a view of
+	 * the storage, valid only during the call, so it must not be kept.
+	 *
+	 * @param src the source, read-only
+	 * @return the value
+	 */
+	V decode(ByteBuffer src);
+}
@@ -1,32 +1,66 @@
 package com.ctriposs.quickcache;
 
-import static com.ctriposs.quickcache.utils.ByteUtil.ToBytes;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.ctriposs.quickcache.CacheConfig.Durability;
+import com.ctriposs.quickcache.CacheConfig.IndexMode;
 import com.ctriposs.quickcache.CacheConfig.StartMode;
+import com.ctriposs.quickcache.storage.BlockScan;
+import com.ctriposs.quickcache.storage.FrequencySketch;
+import com.ctriposs.quickcache.storage.HeapIndex;
 import com.ctriposs.quickcache.storage.Meta;
+import com.ctriposs.quickcache.storage.NearCache;
+import com.ctriposs.quickcache.storage.OffHeapIndex;
 import com.ctriposs.quickcache.storage.Pointer;
+import com.ctriposs.quickcache.storage.ReaderEpoch;
+import com.ctriposs.quickcache.storage.SliceBudget;
 import com.ctriposs.quickcache.storage.StorageManager;
+import com.ctriposs.quickcache.storage.TimingWheel;
 import com.ctriposs.quickcache.storage.WrapperKey;
+import com.ctriposs.quickcache.storage.WriteBehindQueue;
+import com.ctriposs.quickcache.storage.WriteBehindQueue.PendingWrite;
 import com.ctriposs.quickcache.utils.FileUtil;
+import com.ctriposs.quickcache.utils.HashUtil;
+import com.ctriposs.quickcache.utils.KeyCodecs;
 
 public class QuickCache<K> implements ICache<K> {
 	
 	/** The default storage block cleaning period which is 10 minutes. */
 	public static final long DEFAULT_MIGRATE_INTERVAL = 1 * 60 * 1000;
 	
-	/** The default purge interval which is 10 minutes. */
-	public static final long DEFAULT_EXPIRE_INTERVAL = 10 * 60 * 1000;
+	/** The default purge interval, also the resolution of expiration, which is 1 second. */
+	public static final long DEFAULT_EXPIRE_INTERVAL = 1000;
 
 	/** The default storage block cleaning threshold. */
 	public static final float DEFAULT_STORAGE_BLOCK_CLEANING_THRESHOLD = 0.5f;
@@ -35,10 +69,38 @@ public class QuickCache<K> implements ICache<K> {
     public static final double DEFAULT_DIRTY_RATIO_THRESHOLD = 0.5;
     
     public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    
+    /** The default time an expiry or a migration runs for at most before yielding, which is 50 milliseconds. */
+    public static final long DEFAULT_MAINTENANCE_SLICE_TIME = 50;
+
+    /** The number of pointers due unlinked between checks of the slice deadline. */
+    private static final int EXPIRE_CHECK_INTERVAL = 64;
+    
+    /** The default sync interval of the Periodic durability which is 1 second. */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
 
     /** The length of value can't be greater than 4m */
     public static final int MAX_VALUE_LENGTH = 4 * 1024 * 1024;
 
+    /** The number of queued writes applied at once in write-behind mode. */
+    public static final int MAX_WRITE_BEHIND_BATCH = 1024;
+
+    /** The bytes of items written at once by a batch, larger batches are split. */
+    public static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+    /** Orders lookups the way the values are stored, by block then by offset. */
+    private static final Comparator<Lookup<?>> STORAGE_ORDER = new Comparator<Lookup<?>>() {
+		@Override
+		public int compare(Lookup<?> o1, Lookup<?> o2) {
+			int c = o1.pointer.getBlock().compareTo(o2.pointer.getBlock());
+			if (c != 0) {
+				return c;
+			}
+			return o1.pointer.getMetaOffset() < o2.pointer.getMetaOffset() ? -1
+					: (o1.pointer.getMetaOffset() == o2.pointer.getMetaOffset() ? 0 : 1);
+		}
+	};
+
 	/** The hit counter. */
     private AtomicLong hitCounter = new AtomicLong();
 
@@ -60,26 +122,121 @@ public class QuickCache<K> implements ICache<K> {
     /** The # of migrate for dirty block recycle. */
     private AtomicLong migrateCounter = new AtomicLong();
     
+    /** The # of blocks freed as a whole once all their items expired. */
+    private AtomicLong expiredBlockCounter = new AtomicLong();
+    
+    /** The # of blocks evicted to stay within the capacity bound. */
+    private AtomicLong evictedBlockCounter = new AtomicLong();
+    
+    /** The # of items unlinked by evicting their blocks. */
+    private AtomicLong evictedItemCounter = new AtomicLong();
+    
+    /** The # of gets served by the near cache. */
+    private AtomicLong nearHitCounter = new AtomicLong();
+
+    /** The # of gets not found in the near cache. */
+    private AtomicLong nearMissCounter = new AtomicLong();
+    
+    /** The # of values loaded on a miss. */
+    private AtomicLong loadCounter = new AtomicLong();
+
+    /** The # of values reloaded ahead of expiring. */
+    private AtomicLong refreshCounter = new AtomicLong();
+    
+    /** The # of puts dropped by the admission filter. */
+    private AtomicLong rejectedCounter = new AtomicLong();
+    
     /** The # of migrate for dirty block recycle. */
     private AtomicLong migrateErrorCounter = new AtomicLong();
     
     /** The # of expire for dirty block recycle. */
     private AtomicLong expireErrorCounter = new AtomicLong();
+    
+    /** The # of writes failed to be applied in write-behind mode. */
+    private AtomicLong writeBehindErrorCounter = new AtomicLong();
+    
+    /** The # of failed periodic sync. */
+    private AtomicLong syncErrorCounter = new AtomicLong();
 	
     /** The thread pool for expire and migrate*/
     private ScheduledExecutorService scheduler;
 
-    /** The total storage size we have used, including the expired ones which are still in the pointer map */
-	private AtomicLong usedSize = new AtomicLong();
+    /**
+     * The maintenance segments, selected by the top bits of the key hash like the segments of the off-heap index,
+     * each with the storage size used by its keys and the expiry schedule of its pointers.
+     */
+	private final Segment[] segments;
+
+	/** The shift selecting the segment from the key hash, 64 for a single segment. */
+	private final int segmentShift;
+
+	/** Expires the segments in parallel, null if they are expired by the calling thread. */
+	private final ExecutorService expirer;
+
+	/** Sizes the slices of the expiries. */
+	private final SliceBudget expireBudget;
+
+	/** Sizes the slices of the migrations. */
+	private final SliceBudget migrateBudget;
+
+	/** The dirty blocks being migrated, resumed by the next slice, guarded by the reclaim lock. */
+	private final List<Migration> migrations = new ArrayList<Migration>();
+
+	/** Whether the migrations are past their first pass, guarded by the reclaim lock. */
+	private boolean migrationsCopied;
+
+	/** Encodes the keys into the bytes stored and indexed. */
+	private final IKeyCodec<? super K> keyCodec;
 
 	/** The internal map. */
-    private final ConcurrentMap<WrapperKey, Pointer> pointerMap = new ConcurrentHashMap<WrapperKey, Pointer>();
+    private final IIndex pointerMap;
    
     /** Managing the storages. */
 	private final StorageManager storageManager;
+	
+	/** Holds off freeing the blocks migrated while readers may still use their old pointers. */
+	private final ReaderEpoch readerEpoch;
+
+	/** The values of hot keys on heap, null if disabled. */
+	private final NearCache nearCache;
+
+	/** The access frequency of keys, null if all puts are admitted. */
+	private final FrequencySketch admissionSketch;
+
+	/** The median frequency of the keys last evicted, a new key has to be more frequent to be admitted. */
+	private volatile int victimFrequency = 0;
+
+	/** Held while freeing blocks, so a block is never migrated and evicted at once. */
+	private final Lock reclaimLock = new ReentrantLock();
+
+	/** The loads in progress, shared by the concurrent misses of a key. */
+	private final ConcurrentMap<WrapperKey, FutureTask<byte[]>> loads = new ConcurrentHashMap<WrapperKey, FutureTask<byte[]>>();
+
+	/** Reloads the values about to expire, null if refresh-ahead is disabled. */
+	private final ExecutorService refresher;
+
+	/** The time before expiring within which a get reloads the value. */
+	private final long refreshAheadTime;
+
+	/** The writes not yet applied to the storage, null unless in write-behind mode. */
+	private final WriteBehindQueue writeBehindQueue;
+
+	/** Applies the writes queued in write-behind mode, null unless in write-behind mode. */
+	private final Thread appender;
+
+	/** Held by the appender while polling and applying a run and by clear, so a run is dropped or applied whole. */
+	private final Lock writeBehindLock = new ReentrantLock();
 
 	
     public QuickCache(String dir, CacheConfig config) throws IOException {
+    	this(dir, config, KeyCodecs.<K>object());
+    }
+
+    /**
+     * Instantiates a cache encoding its keys with the specified codec, which must be the same when recovering.
+     */
+    public QuickCache(String dir, CacheConfig config, IKeyCodec<? super K> keyCodec) throws IOException {
+        this.keyCodec = keyCodec;
         String cacheDir = dir;
 		if (!cacheDir.endsWith(File.separator)) {
 			cacheDir += File.separator;
@@ -95,15 +252,412 @@ public class QuickCache<K> implements ICache<K> {
                 config.getStorageMode(),
                 config.getMaxOffHeapMemorySize(),
                 config.getDirtyRatioThreshold(),
-                config.getStartMode());
+                config.getStartMode(),
+                config.getWriteBufferSize(),
+                config.getDurability(),
+                config.getSyncBytes(),
+                config.getConcurrencyLevel(),
+                config.getMaxTotalCapacity());
+		if (config.getIndexMode() == IndexMode.OffHeap) {
+			this.pointerMap = new OffHeapIndex(storageManager, config.getConcurrencyLevel());
+		} else {
+			this.pointerMap = new HeapIndex(config.getConcurrencyLevel());
+		}
+		this.readerEpoch = new ReaderEpoch(config.getConcurrencyLevel());
+		if (config.getNearCacheSize() > 0) {
+			this.nearCache = new NearCache(config.getNearCacheSize(), config.getConcurrencyLevel());
+		} else {
+			this.nearCache = null;
+		}
+		if (config.getAdmissionSketchSize() > 0 && config.getMaxTotalCapacity() > 0) {
+			this.admissionSketch = new FrequencySketch(config.getAdmissionSketchSize());
+		} else {
+			this.admissionSketch = null;
+		}
+		this.refreshAheadTime = config.getRefreshAheadTime();
+		if (refreshAheadTime > 0) {
+			this.refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "quickcache-refresher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			this.refresher = null;
+		}
+		int segmentBits = 0;
+		while ((1 << segmentBits) < config.getConcurrencyLevel()) {
+			segmentBits++;
+		}
+		this.segmentShift = 64 - segmentBits;
+		this.segments = new Segment[1 << segmentBits];
+		long startTime = System.currentTimeMillis();
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(config.getExpireInterval(), startTime);
+		}
+		int expireThreads = Math.min(segments.length, Runtime.getRuntime().availableProcessors());
+		if (expireThreads > 1) {
+			this.expirer = Executors.newFixedThreadPool(expireThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "quickcache-expirer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			this.expirer = null;
+		}
 		if(config.getStartMode() == StartMode.RecoveryFromFile) {
 			this.storageManager.loadPointerMap(pointerMap);
+			Iterator<Map.Entry<WrapperKey, Pointer>> it = pointerMap.iterator();
+			while (it.hasNext()) {
+				Map.Entry<WrapperKey, Pointer> entry = it.next();
+				scheduleExpiry(entry.getKey(), entry.getValue());
+			}
 		}
-		this.scheduler = new ScheduledThreadPoolExecutor(2);
+		if (config.getWriteBehindQueueSize() > 0) {
+			this.writeBehindQueue = new WriteBehindQueue(config.getWriteBehindQueueSize());
+			this.appender = new Thread(new WriteBehindAppender(), "quickcache-appender");
+			this.appender.setDaemon(true);
+			this.appender.start();
+		} else {
+			this.writeBehindQueue = null;
+			this.appender = null;
+		}
+		this.expireBudget = new SliceBudget(config.getMaintenanceSliceTime());
+		this.migrateBudget = new SliceBudget(config.getMaintenanceSliceTime());
+		this.scheduler = new ScheduledThreadPoolExecutor(3);
 		this.scheduler.scheduleWithFixedDelay(new ExpireScheduler(this), config.getExpireInterval(), config.getExpireInterval(), TimeUnit.MILLISECONDS);
 		this.scheduler.scheduleWithFixedDelay(new MigrateScheduler(this), config.getMigrateInterval(), config.getMigrateInterval(), TimeUnit.MILLISECONDS);
+		if (config.getDurability() == Durability.Periodic && config.getSyncInterval() > 0) {
+			this.scheduler.scheduleWithFixedDelay(new SyncScheduler(this), config.getSyncInterval(), config.getSyncInterval(), TimeUnit.MILLISECONDS);
+		}
     }
 	
+    private Segment segmentFor(WrapperKey wKey) {
+    	return segmentShift == 64 ? segments[0] : segments[(int) (wKey.getHash() >>> segmentShift)];
+    }
+
+    /**
+     * Adds to the storage size used by the segment of a key, negative when its item is unlinked.
+     */
+    private void addUsedSize(WrapperKey wKey, long delta) {
+    	segmentFor(wKey).usedSize.addAndGet(delta);
+    }
+
+    /**
+     * Schedules the removal of a pointer linked to the index, if it has a time to idle. A key has a single
+     * deadline scheduled, at or before the expiry of its pointer, so a pointer expiring later than the one
+     * it replaces is left to the deadline scheduled, which looks the key up again when it comes due.
+     */
+    private void scheduleExpiry(WrapperKey wKey, Pointer pointer) {
+    	if (pointer.getTtl() <= 0 || pointer.getLastAccessTime() < 0) {
+    		return;
+    	}
+    	long deadline = pointer.getLastAccessTime() + pointer.getTtl();
+    	Segment segment = segmentFor(wKey);
+    	Long scheduled = Long.valueOf(deadline);
+    	while (true) {
+    		Long current = segment.deadlines.putIfAbsent(wKey, scheduled);
+    		if (current == null) {
+    			break;
+    		}
+    		if (current.longValue() <= deadline) {
+    			return;
+    		}
+    		// the later deadline scheduled is superseded, dropped when it comes due
+    		if (segment.deadlines.replace(wKey, current, scheduled)) {
+    			break;
+    		}
+    	}
+    	segment.expiryWheel.add(new Expiry(wKey, deadline), deadline);
+    }
+
+    /**
+     * Unlinks the pointers expired by the specified time from the index, a segment at a time, the segments
+     * in parallel if there are cores to spare.
+     * 
+     * @param deadline the deadline of the slice, the pointers left are unlinked by the next expiry
+     * @return false if pointers due were left
+     */
+    private boolean expire(final long now, final long deadline) {
+    	boolean done = true;
+    	if (expirer == null) {
+    		for (Segment segment : segments) {
+    			done &= expire(segment, now, deadline);
+    		}
+    		return done;
+    	}
+    	List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(segments.length);
+    	try {
+    		for (final Segment segment : segments) {
+    			futures.add(expirer.submit(new Callable<Boolean>() {
+    				@Override
+    				public Boolean call() {
+    					return expire(segment, now, deadline);
+    				}
+    			}));
+    		}
+    		for (Future<Boolean> future : futures) {
+    			done &= future.get();
+    		}
+    		return done;
+    	} catch (RejectedExecutionException e) {
+    		// closing
+    	} catch (ExecutionException e) {
+    		expireErrorCounter.incrementAndGet();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	return false;
+    }
+
+    /**
+     * Unlinks the pointers of a segment expired by the specified time, those left by the last slice first.
+     * Only the puts scheduling into the segment wait for its wheel to advance.
+     * 
+     * @return false if pointers due were left
+     */
+    private boolean expire(Segment segment, long now, long deadline) {
+    	// once the lock is taken, the pointers due taken by another expiry are unlinked or left to us
+    	segment.expireLock.lock();
+    	try {
+    		boolean advanced = false;
+    		while (true) {
+    			if (segment.next == segment.due.size()) {
+    				if (advanced) {
+    					segment.due = Collections.emptyList();
+    					segment.next = 0;
+    					return true;
+    				}
+    				// only the keys due are visited
+    				segment.due = segment.expiryWheel.advance(now);
+    				segment.next = 0;
+    				advanced = true;
+    			} else {
+    				unlinkDue(segment.due.get(segment.next++));
+    				if (segment.next < segment.due.size() && segment.next % EXPIRE_CHECK_INTERVAL == 0
+    						&& SliceBudget.isOver(deadline)) {
+    					return false;
+    				}
+    			}
+    		}
+    	} finally {
+    		segment.expireLock.unlock();
+    	}
+    }
+
+    /**
+     * Unlinks the pointer of a key come due if it has expired, then schedules the pointer linked if it has
+     * a time to idle, else the key is no longer scheduled.
+     */
+    private void unlinkDue(Expiry expiry) {
+    	WrapperKey wKey = expiry.key;
+    	Segment segment = segmentFor(wKey);
+    	Long deadline = Long.valueOf(expiry.deadline);
+    	if (!deadline.equals(segment.deadlines.get(wKey))) {
+    		// superseded by an earlier deadline
+    		return;
+    	}
+		int ticket = readerEpoch.enter();
+		try {
+			Pointer pointer = pointerMap.get(wKey);
+			if (pointer != null && pointer.isExpired()) {
+				if (pointerMap.remove(wKey, pointer)) {
+					invalidateNear(wKey);
+					storageManager.markDirty(pointer);
+					addUsedSize(wKey, (pointer.getItemSize()+Meta.META_SIZE) * -1);
+				}
+				pointer = pointerMap.get(wKey);
+			}
+			if (pointer != null && pointer.getTtl() > 0 && pointer.getLastAccessTime() >= 0) {
+				long next = pointer.getLastAccessTime() + pointer.getTtl();
+				if (segment.deadlines.replace(wKey, deadline, Long.valueOf(next))) {
+					segment.expiryWheel.add(new Expiry(wKey, next), next);
+				}
+			} else {
+				segment.deadlines.remove(wKey, deadline);
+			}
+			// a put linking meanwhile may have relied on the deadline just replaced or removed
+			pointer = pointerMap.get(wKey);
+			if (pointer != null) {
+				scheduleExpiry(wKey, pointer);
+			}
+		} catch(Throwable t) {
+			expireErrorCounter.incrementAndGet();
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+    }
+
+    /**
+     * The number of foreground operations so far, the load the maintenance slices adapt to.
+     */
+    private long foregroundOps() {
+    	return getCounter.get() + putCounter.get() + deleteCounter.get();
+    }
+
+    /**
+     * Evicts the oldest sealed block not retained, unless another thread has made room meanwhile.
+     * 
+     * @return false if no block was reclaimed
+     */
+    private boolean evict() throws IOException {
+    	reclaimLock.lock();
+    	try {
+    		// blocks whose free was deferred may have been released since
+    		storageManager.clean();
+    		if (storageManager.getFreeBlockCount() > 0) {
+    			return true;
+    		}
+    		IBlock block = storageManager.getOldestBlock();
+    		if (block == null) {
+    			return false;
+    		}
+    		block.flush();
+    		BlockScan scan = new BlockScan(block, true).call();
+    		long evicted = unlinkItems(scan);
+    		if (admissionSketch != null) {
+    			victimFrequency = medianFrequency(scan);
+    		}
+    		// readers may still hold the pointers unlinked, puts storing into the block meanwhile are done
+    		readerEpoch.synchronize();
+    		long linked = unlinkItems(scan);
+    		if (linked > 0) {
+    			readerEpoch.synchronize();
+    		}
+    		block.free();
+    		storageManager.clean();
+    		evictedBlockCounter.incrementAndGet();
+    		evictedItemCounter.addAndGet(evicted + linked);
+    		// retained by a lease meanwhile, the block is reclaimed once released
+    		return !block.isRetained();
+    	} finally {
+    		reclaimLock.unlock();
+    	}
+    }
+
+    /**
+     * Gets the median of the access frequencies of the keys of the scanned block.
+     */
+    private int medianFrequency(BlockScan scan) {
+    	int[] histogram = new int[FrequencySketch.MAX_FREQUENCY + 1];
+    	int keys = 0;
+    	for (int i = 0; i < scan.getCount(); i++) {
+    		if (scan.getMeta(i).getTtl() != Meta.TTL_DELETE) {
+    			histogram[admissionSketch.frequency(HashUtil.xxHash64(scan.getKey(i)))]++;
+    			keys++;
+    		}
+    	}
+    	int seen = 0;
+    	for (int frequency = 0; frequency < histogram.length; frequency++) {
+    		seen += histogram[frequency];
+    		if (2 * seen >= keys) {
+    			return frequency;
+    		}
+    	}
+    	return 0;
+    }
+
+    /**
+     * Counts an access to the key for the admission filter.
+     */
+    private void recordAccess(WrapperKey wKey) {
+    	if (admissionSketch != null) {
+    		admissionSketch.increment(wKey.getHash());
+    	}
+    }
+
+    /**
+     * Whether a put of the key is worth storing, always so for a key in the cache as its value is replaced.
+     */
+    private boolean admit(WrapperKey wKey) throws IOException {
+    	if (admissionSketch == null || !storageManager.isFull()) {
+    		return true;
+    	}
+    	return admissionSketch.frequency(wKey.getHash()) > victimFrequency || pointerMap.containsKey(wKey);
+    }
+
+    /**
+     * Unlinks the items of the scanned block still referenced by the index.
+     * 
+     * @return the number of items unlinked
+     */
+    private long unlinkItems(BlockScan scan) throws IOException {
+    	IBlock block = scan.getBlock();
+    	long unlinked = 0;
+    	for (int i = 0; i < scan.getCount(); i++) {
+    		Meta meta = scan.getMeta(i);
+    		if (meta.getTtl() == Meta.TTL_DELETE) {
+    			continue;
+    		}
+    		WrapperKey wKey = new WrapperKey(scan.getKey(i));
+    		Pointer pointer = pointerMap.get(wKey);
+    		if (pointer != null && pointer.getBlock() == block && pointer.getMetaOffset() == meta.getOffSet()
+    				&& pointerMap.remove(wKey, pointer)) {
+    			invalidateNear(wKey);
+    			storageManager.markDirty(pointer);
+    			addUsedSize(wKey, (pointer.getItemSize()+Meta.META_SIZE) * -1);
+    			unlinked++;
+    		}
+    	}
+    	return unlinked;
+    }
+
+    private void invalidateNear(WrapperKey wKey) {
+    	if (nearCache != null) {
+    		nearCache.invalidate(wKey);
+    	}
+    }
+
+    /**
+     * Gets the value from the near cache, counting the near cache hit or miss.
+     */
+    private byte[] getNear(WrapperKey wKey) {
+    	if (nearCache == null) {
+    		return null;
+    	}
+    	byte[] value = nearCache.get(wKey);
+    	if (value != null) {
+    		nearHitCounter.incrementAndGet();
+    	} else {
+    		nearMissCounter.incrementAndGet();
+    	}
+    	return value;
+    }
+
+    /**
+     * Keeps a copy of the value read in the near cache, unless the key has been relinked meanwhile.
+     */
+    private void putNear(WrapperKey wKey, Pointer pointer, byte[] value) throws IOException {
+    	if (nearCache != null) {
+    		NearCache.Entry entry = nearCache.put(wKey, pointer, value);
+    		// a put or delete may have invalidated the key before the entry was put
+    		if (entry != null && !pointer.equals(pointerMap.get(wKey))) {
+    			nearCache.remove(wKey, entry);
+    		}
+    	}
+    }
+
+    private PendingWrite getPending(WrapperKey wKey) {
+    	return writeBehindQueue != null ? writeBehindQueue.get(wKey) : null;
+    }
+
+    /**
+     * Gets a copy of the value of a pending write, counting the hit or miss.
+     */
+    private byte[] pendingValue(PendingWrite pending) {
+    	if (pending.isDelete()) {
+    		missCounter.incrementAndGet();
+    		return null;
+    	}
+    	hitCounter.incrementAndGet();
+    	return pending.getValue().clone();
+    }
+
     private void checkKey(K key) {
     	if(key == null) {
     		throw new IllegalArgumentException("key is null");
@@ -114,43 +668,331 @@ public class QuickCache<K> implements ICache<K> {
 	public byte[] get(K key) throws IOException {
 		getCounter.incrementAndGet();
 		checkKey(key);
-		WrapperKey wKey = new WrapperKey(ToBytes(key));
+		return get(new WrapperKey(keyCodec.encode(key)));
+	}
+
+	private byte[] get(WrapperKey wKey) throws IOException {
+		recordAccess(wKey);
+		PendingWrite pending = getPending(wKey);
+		if (pending != null) {
+			return pendingValue(pending);
+		}
+		byte[] nearValue = getNear(wKey);
+		if (nearValue != null) {
+			hitCounter.incrementAndGet();
+			return nearValue.clone();
+		}
 
-		Pointer pointer = pointerMap.get(wKey);
+		int ticket = readerEpoch.enter();
+		try {
+			Pointer pointer = pointerMap.get(wKey);
 
-		if (pointer == null) {
-			missCounter.incrementAndGet();
-			return null;
+			if (pointer == null) {
+				missCounter.incrementAndGet();
+				return null;
+			}
+
+			if (!pointer.isExpired()) {
+				hitCounter.incrementAndGet();
+				byte[] value = storageManager.retrieve(pointer);
+				if (nearCache != null) {
+					putNear(wKey, pointer, value.clone());
+				}
+				return value;
+			} else {
+				missCounter.incrementAndGet();
+				return null;
+			}
+		} finally {
+			readerEpoch.exit(ticket);
 		}
 
-		if (!pointer.isExpired()) {
-			hitCounter.incrementAndGet();
-			return storageManager.retrieve(pointer);
+	}
+	
+	@Override
+	public byte[] get(K key, ICacheLoader<K> loader, long ttl) throws IOException {
+		getCounter.incrementAndGet();
+		checkKey(key);
+		WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		byte[] value = get(wKey);
+		if (value == null) {
+			return load(key, wKey, loader, ttl);
+		}
+		if (refresher != null && ttl > 0) {
+			int ticket = readerEpoch.enter();
+			try {
+				Pointer pointer = pointerMap.get(wKey);
+				if (pointer != null && pointer.getTtl() > 0
+						&& pointer.getLastAccessTime() + pointer.getTtl() - System.currentTimeMillis() < refreshAheadTime) {
+					refresh(key, wKey, loader, ttl);
+				}
+			} finally {
+				readerEpoch.exit(ticket);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Loads the missing value, concurrent misses of the key waiting for the same load.
+	 */
+	private byte[] load(K key, WrapperKey wKey, ICacheLoader<K> loader, long ttl) throws IOException {
+		LoadTask task = new LoadTask(key, wKey, loader, ttl);
+		FutureTask<byte[]> load = loads.putIfAbsent(wKey, task);
+		if (load == null) {
+			task.run();
+			load = task;
+		}
+		try {
+			return load.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to load the value", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading the value");
+		}
+	}
+
+	/**
+	 * Reloads the value about to expire in the background, unless being loaded already.
+	 */
+	private void refresh(K key, WrapperKey wKey, ICacheLoader<K> loader, long ttl) {
+		LoadTask task = new LoadTask(key, wKey, loader, ttl);
+		if (loads.putIfAbsent(wKey, task) == null) {
+			try {
+				refresher.execute(task);
+				refreshCounter.incrementAndGet();
+			} catch (RejectedExecutionException e) {
+				// closing
+				loads.remove(wKey, task);
+			}
+		}
+	}
+
+	@Override
+	public int get(K key, ByteBuffer dst) throws IOException {
+		getCounter.incrementAndGet();
+		checkKey(key);
+		WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		recordAccess(wKey);
+		byte[] heapValue;
+		PendingWrite pending = getPending(wKey);
+		if (pending != null) {
+			heapValue = pendingValue(pending);
+			if (heapValue == null) {
+				return -1;
+			}
 		} else {
-			missCounter.incrementAndGet();
-			return null;
+			heapValue = getNear(wKey);
+			if (heapValue != null) {
+				hitCounter.incrementAndGet();
+			}
 		}
+		if (heapValue != null) {
+			if (dst.remaining() >= heapValue.length) {
+				dst.put(heapValue);
+			}
+			return heapValue.length;
+		}
+
+		int ticket = readerEpoch.enter();
+		try {
+			Pointer pointer = pointerMap.get(wKey);
 
+			if (pointer == null || pointer.isExpired()) {
+				missCounter.incrementAndGet();
+				return -1;
+			}
+
+			hitCounter.incrementAndGet();
+			if (dst.remaining() >= pointer.getValueSize()) {
+				pointer.getBlock().retrieve(pointer, dst);
+			}
+			return pointer.getValueSize();
+		} finally {
+			readerEpoch.exit(ticket);
+		}
 	}
-	
+
+	@Override
+	public Map<K, byte[]> getAll(Collection<? extends K> keys) throws IOException {
+		getCounter.addAndGet(keys.size());
+		Map<K, byte[]> values = new HashMap<K, byte[]>();
+		List<Lookup<K>> found = new ArrayList<Lookup<K>>(keys.size());
+
+		int ticket = readerEpoch.enter();
+		try {
+			for (K key : keys) {
+				checkKey(key);
+				WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+				recordAccess(wKey);
+				PendingWrite pending = getPending(wKey);
+				if (pending != null) {
+					byte[] value = pendingValue(pending);
+					if (value != null) {
+						values.put(key, value);
+					}
+					continue;
+				}
+				byte[] nearValue = getNear(wKey);
+				if (nearValue != null) {
+					hitCounter.incrementAndGet();
+					values.put(key, nearValue.clone());
+					continue;
+				}
+				Pointer pointer = pointerMap.get(wKey);
+				if (pointer == null || pointer.isExpired()) {
+					missCounter.incrementAndGet();
+					continue;
+				}
+				hitCounter.incrementAndGet();
+				found.add(new Lookup<K>(key, wKey, pointer));
+			}
+			// sequential reads within each block
+			Collections.sort(found, STORAGE_ORDER);
+			for (Lookup<K> lookup : found) {
+				byte[] value = storageManager.retrieve(lookup.pointer);
+				if (nearCache != null) {
+					putNear(lookup.wKey, lookup.pointer, value.clone());
+				}
+				values.put(lookup.key, value);
+			}
+			return values;
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+
+	@Override
+	public ValueLease lease(K key) throws IOException {
+		getCounter.incrementAndGet();
+		checkKey(key);
+		WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		recordAccess(wKey);
+		PendingWrite pending = getPending(wKey);
+		if (pending != null) {
+			byte[] value = pendingValue(pending);
+			return value != null ? new ValueLease(null, ByteBuffer.wrap(value).asReadOnlyBuffer()) : null;
+		}
+
+		int ticket = readerEpoch.enter();
+		try {
+			while (true) {
+				Pointer pointer = pointerMap.get(wKey);
+
+				if (pointer == null || pointer.isExpired()) {
+					missCounter.incrementAndGet();
+					return null;
+				}
+
+				IBlock block = pointer.getBlock();
+				if (block.retain()) {
+					// the value may have been migrated before the block was retained
+					if (pointer.equals(pointerMap.get(wKey))) {
+						ByteBuffer view = block.retrieveView(pointer);
+						if (view != null) {
+							hitCounter.incrementAndGet();
+							return new ValueLease(block, view);
+						}
+						try {
+							byte[] value = block.retrieve(pointer);
+							hitCounter.incrementAndGet();
+							return new ValueLease(null, ByteBuffer.wrap(value).asReadOnlyBuffer());
+						} finally {
+							block.release();
+						}
+					}
+					block.release();
+				} else {
+					// being freed, wait for the pointer to be migrated
+					Thread.yield();
+				}
+			}
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+
 	@Override
 	public byte[] delete(K key) throws IOException {
 		deleteCounter.incrementAndGet();
 		checkKey(key);
-        WrapperKey wKey = new WrapperKey(ToBytes(key));
-		Pointer oldPointer = pointerMap.remove(wKey);
-		if(oldPointer!=null) {
-			byte[] bytes = new byte[1];
-			Pointer newPointer = storageManager.store(wKey.getKey(),bytes,Meta.TTL_DELETE);
-			storageManager.markDirty(oldPointer);
-			storageManager.markDirty(newPointer);
-            usedSize.addAndGet((oldPointer.getItemSize()+Meta.META_SIZE) * -1);
+        WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		if (writeBehindQueue != null) {
+			writeBehindQueue.offer(wKey, null, Meta.TTL_DELETE);
 			return null;
 		}
+		int ticket = readerEpoch.enter();
+		try {
+			Pointer oldPointer = pointerMap.remove(wKey);
+			if(oldPointer!=null) {
+				invalidateNear(wKey);
+				byte[] bytes = new byte[1];
+				Pointer newPointer = storageManager.store(wKey.getKey(),bytes,Meta.TTL_DELETE);
+				storageManager.markDirty(oldPointer);
+				storageManager.markDirty(newPointer);
+	            addUsedSize(wKey, (oldPointer.getItemSize()+Meta.META_SIZE) * -1);
+				return null;
+			}
+		} finally {
+			readerEpoch.exit(ticket);
+		}
 		
 		return null;
 	}
 	
+	@Override
+	public void deleteAll(Collection<? extends K> keys) throws IOException {
+		deleteCounter.addAndGet(keys.size());
+		List<WrapperKey> wKeys = new ArrayList<WrapperKey>(keys.size());
+		for (K key : keys) {
+			checkKey(key);
+			wKeys.add(new WrapperKey(keyCodec.encode(key)));
+		}
+		if (writeBehindQueue != null) {
+			for (WrapperKey wKey : wKeys) {
+				writeBehindQueue.offer(wKey, null, Meta.TTL_DELETE);
+			}
+			return;
+		}
+		deleteBatch(wKeys);
+	}
+
+	/**
+	 * Unlinks the keys, then stores their delete items as batches.
+	 */
+	private void deleteBatch(List<WrapperKey> wKeys) throws IOException {
+		int ticket = readerEpoch.enter();
+		try {
+			List<WrapperKey> removed = new ArrayList<WrapperKey>(wKeys.size());
+			for (WrapperKey wKey : wKeys) {
+				Pointer oldPointer = pointerMap.remove(wKey);
+				if (oldPointer != null) {
+					invalidateNear(wKey);
+					storageManager.markDirty(oldPointer);
+					addUsedSize(wKey, (oldPointer.getItemSize()+Meta.META_SIZE) * -1);
+					removed.add(wKey);
+				}
+			}
+			List<byte[]> values = Collections.nCopies(removed.size(), new byte[1]);
+			int from = 0;
+			while (from < removed.size()) {
+				int to = batchEnd(removed, values, from);
+				Pointer[] newPointers = storageManager.storeAll(keyBytes(removed, from, to),
+						values.subList(from, to).toArray(new byte[to - from][]), Meta.TTL_DELETE, false);
+				for (Pointer newPointer : newPointers) {
+					storageManager.markDirty(newPointer);
+				}
+				from = to;
+			}
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+	
 	@Override
 	public void put(K key, byte[] value) throws IOException {
 		put(key, value, Meta.TTL_NEVER_EXPIRE); // -1 means no time to idle(never expires)
@@ -163,16 +1005,123 @@ public class QuickCache<K> implements ICache<K> {
         if (value == null || value.length > MAX_VALUE_LENGTH) {
             throw new IllegalArgumentException("value is null or too long");
         }
-        WrapperKey wKey = new WrapperKey(ToBytes(key));
+        WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		if (writeBehindQueue != null) {
+			recordAccess(wKey);
+			// the caller may reuse the array once returned
+			writeBehindQueue.offer(wKey, value.clone(), ttl);
+			return;
+		}
        
-		Pointer newPointer = storageManager.store(wKey.getKey(), value, ttl);		
+		// entered before storing, so a migration of the block stored to waits for the pointer to be linked
+		recordAccess(wKey);
+		int ticket = readerEpoch.enter();
+		try {
+			if (!admit(wKey)) {
+				rejectedCounter.incrementAndGet();
+				return;
+			}
+			Pointer newPointer = storageManager.store(wKey.getKey(), value, ttl, true);
+			while (newPointer == null) {
+				// full, the eviction waits for the readers so it runs outside of the epoch
+				readerEpoch.exit(ticket);
+				boolean evicted;
+				try {
+					evicted = evict();
+				} finally {
+					ticket = readerEpoch.enter();
+				}
+				// nothing to evict, stored beyond the bound
+				newPointer = storageManager.store(wKey.getKey(), value, ttl, evicted);
+			}
+			link(wKey, newPointer);
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends K, byte[]> entries) throws IOException {
+		putAll(entries, Meta.TTL_NEVER_EXPIRE);
+	}
+
+	@Override
+	public void putAll(Map<? extends K, byte[]> entries, long ttl) throws IOException {
+		putCounter.addAndGet(entries.size());
+		List<WrapperKey> wKeys = new ArrayList<WrapperKey>(entries.size());
+		List<byte[]> values = new ArrayList<byte[]>(entries.size());
+		for (Map.Entry<? extends K, byte[]> entry : entries.entrySet()) {
+			checkKey(entry.getKey());
+			byte[] value = entry.getValue();
+			if (value == null || value.length > MAX_VALUE_LENGTH) {
+				throw new IllegalArgumentException("value is null or too long");
+			}
+			WrapperKey wKey = new WrapperKey(keyCodec.encode(entry.getKey()));
+			recordAccess(wKey);
+			wKeys.add(wKey);
+			values.add(value);
+		}
+		if (writeBehindQueue != null) {
+			for (int i = 0; i < wKeys.size(); i++) {
+				writeBehindQueue.offer(wKeys.get(i), values.get(i).clone(), ttl);
+			}
+			return;
+		}
+		putBatch(wKeys, values, ttl);
+	}
+
+	/**
+	 * Stores the admitted values as batches, then links them.
+	 */
+	private void putBatch(List<WrapperKey> wKeys, List<byte[]> values, long ttl) throws IOException {
+		int ticket = readerEpoch.enter();
+		try {
+			for (int i = wKeys.size() - 1; i >= 0; i--) {
+				if (!admit(wKeys.get(i))) {
+					rejectedCounter.incrementAndGet();
+					wKeys.remove(i);
+					values.remove(i);
+				}
+			}
+			int from = 0;
+			while (from < wKeys.size()) {
+				int to = batchEnd(wKeys, values, from);
+				byte[][] keyBytes = keyBytes(wKeys, from, to);
+				byte[][] valueBytes = values.subList(from, to).toArray(new byte[to - from][]);
+				Pointer[] newPointers = storageManager.storeAll(keyBytes, valueBytes, ttl, true);
+				while (newPointers == null) {
+					readerEpoch.exit(ticket);
+					boolean evicted;
+					try {
+						evicted = evict();
+					} finally {
+						ticket = readerEpoch.enter();
+					}
+					newPointers = storageManager.storeAll(keyBytes, valueBytes, ttl, evicted);
+				}
+				for (int i = from; i < to; i++) {
+					link(wKeys.get(i), newPointers[i - from]);
+				}
+				from = to;
+			}
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+
+	/**
+	 * Links the pointer stored to the index, unless a later one is linked already.
+	 */
+	private void link(WrapperKey wKey, Pointer newPointer) throws IOException {
 		while(true) {
 			Pointer oldPointer = pointerMap.get(wKey);
 			if(oldPointer != null){
 				if(oldPointer.getCreateNanoTime() <= newPointer.getCreateNanoTime()) {
 
 					if(pointerMap.replace(wKey, oldPointer, newPointer)) {
+						invalidateNear(wKey);
 						storageManager.markDirty(oldPointer); 
+						scheduleExpiry(wKey, newPointer);
 						break;
 					}
 				}else {
@@ -187,31 +1136,114 @@ public class QuickCache<K> implements ICache<K> {
 						break;
 					}
 				} else {
-					usedSize.addAndGet(newPointer.getItemSize() + Meta.META_SIZE);
+					invalidateNear(wKey);
+					addUsedSize(wKey, newPointer.getItemSize() + Meta.META_SIZE);
+					scheduleExpiry(wKey, newPointer);
 					break;
 				}
 			}
 		}
 	}
 
+	/**
+	 * Gets the end of the batch starting at from, so that it is written at once.
+	 */
+	private static int batchEnd(List<WrapperKey> wKeys, List<byte[]> values, int from) {
+		long size = 0;
+		int to = from;
+		while (to < wKeys.size()) {
+			size += Meta.META_SIZE + wKeys.get(to).getKey().length + values.get(to).length;
+			if (size > MAX_BATCH_SIZE && to > from) {
+				break;
+			}
+			to++;
+		}
+		return to;
+	}
+
+	private static byte[][] keyBytes(List<WrapperKey> wKeys, int from, int to) {
+		byte[][] keyBytes = new byte[to - from][];
+		for (int i = from; i < to; i++) {
+			keyBytes[i - from] = wKeys.get(i).getKey();
+		}
+		return keyBytes;
+	}
+
 	@Override
 	public boolean contains(K key) throws IOException {
 		
-		WrapperKey wKey = new WrapperKey(ToBytes(key));
-		return pointerMap.containsKey(wKey);
+		WrapperKey wKey = new WrapperKey(keyCodec.encode(key));
+		PendingWrite pending = getPending(wKey);
+		if (pending != null) {
+			return !pending.isDelete();
+		}
+		int ticket = readerEpoch.enter();
+		try {
+			return pointerMap.containsKey(wKey);
+		} finally {
+			readerEpoch.exit(ticket);
+		}
+	}
+	
+	/**
+	 * Waits until the writes made before the call have been applied to the storage, only needed in
+	 * write-behind mode where puts and deletes return once queued.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (writeBehindQueue != null) {
+			writeBehindQueue.flush();
+		}
 	}
 	
 	@Override
 	public void clear() {
-        pointerMap.clear();
-		storageManager.free();
-        usedSize.set(0);
+		writeBehindLock.lock();
+		try {
+			if (writeBehindQueue != null) {
+				writeBehindQueue.clear();
+			}
+			pointerMap.clear();
+			if (nearCache != null) {
+				nearCache.clear();
+			}
+			storageManager.free();
+			for (Segment segment : segments) {
+				segment.usedSize.set(0);
+				segment.deadlines.clear();
+			}
+		} finally {
+			writeBehindLock.unlock();
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
-        clear();
+        if (appender != null) {
+        	flush();
+        	appender.interrupt();
+        	try {
+        		appender.join();
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
+        	}
+        }
+        if (refresher != null) {
+        	refresher.shutdownNow();
+        }
         scheduler.shutdownNow();
+        if (expirer != null) {
+        	expirer.shutdownNow();
+        }
+        try {
+            // a running migration still reads the blocks
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        clear();
+		pointerMap.close();
 		storageManager.close();
 	}
 	
@@ -220,10 +1252,178 @@ public class QuickCache<K> implements ICache<K> {
 		return 1.0 * hitCounter.get() / (hitCounter.get() + missCounter.get());
 	}
     
+	/**
+	 * Applies the queued writes in runs, puts of the same ttl and deletes being stored as batches.
+	 */
+	private final class WriteBehindAppender implements Runnable {
+
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					if (!writeBehindQueue.await(100)) {
+						continue;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				// a clear in between would drop the run, or see it applied afterwards
+				writeBehindLock.lock();
+				try {
+					apply(writeBehindQueue.poll(MAX_WRITE_BEHIND_BATCH));
+				} finally {
+					writeBehindLock.unlock();
+				}
+			}
+		}
+
+		private void apply(List<PendingWrite> writes) {
+			if (writes.isEmpty()) {
+				return;
+			}
+			List<WrapperKey> wKeys = new ArrayList<WrapperKey>(writes.size());
+			List<byte[]> values = new ArrayList<byte[]>(writes.size());
+			for (PendingWrite write : writes) {
+				wKeys.add(write.getKey());
+				values.add(write.getValue());
+			}
+			try {
+				if (writes.get(0).isDelete()) {
+					deleteBatch(wKeys);
+				} else {
+					putBatch(wKeys, values, writes.get(0).getTtl());
+				}
+			} catch (Throwable t) {
+				writeBehindErrorCounter.addAndGet(writes.size());
+			} finally {
+				writeBehindQueue.applied(writes);
+			}
+		}
+	}
+
+	/**
+	 * Loads a value and puts it, then lets the next miss of the key start another load.
+	 */
+	private final class LoadTask extends FutureTask<byte[]> {
+
+		private final WrapperKey wKey;
+
+		LoadTask(final K key, WrapperKey wKey, final ICacheLoader<K> loader, final long ttl) {
+			super(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					loadCounter.incrementAndGet();
+					byte[] value = loader.load(key);
+					if (value != null) {
+						put(key, value, ttl);
+					}
+					return value;
+				}
+			});
+			this.wKey = wKey;
+		}
+
+		@Override
+		protected void done() {
+			loads.remove(wKey, this);
+		}
+	}
+
+	/**
+	 * The maintenance state of the keys of a hash range.
+	 */
+	private static final class Segment {
+
+		/** The storage size used by the keys, including the expired ones still linked. */
+		final AtomicLong usedSize = new AtomicLong();
+
+		/** The keys with a time to idle, by their deadline. */
+		final TimingWheel<Expiry> expiryWheel;
+
+		/** The deadline scheduled of each key with a time to idle. */
+		final ConcurrentMap<WrapperKey, Long> deadlines = new ConcurrentHashMap<WrapperKey, Long>();
+
+		/** Held while unlinking the pointers due, so none is unlinked twice or freed before it is unlinked. */
+		final Lock expireLock = new ReentrantLock();
+
+		/** The keys taken from the wheel and the next one to look up, guarded by the expire lock. */
+		List<Expiry> due = Collections.emptyList();
+		int next;
+
+		Segment(long tickDuration, long startTime) {
+			this.expiryWheel = new TimingWheel<Expiry>(tickDuration, startTime);
+		}
+	}
+
+	/**
+	 * A deadline of a key in the expiry wheel.
+	 */
+	private static final class Expiry {
+
+		final WrapperKey key;
+
+		final long deadline;
+
+		Expiry(WrapperKey key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * A dirty block being migrated, with the item its migration resumes at.
+	 */
+	private static final class Migration {
+
+		final IBlock block;
+
+		/** The generation of the block when the migration started, the block is freed once it changes. */
+		final int generation;
+
+		/** The items of the block, null until it is scanned. */
+		BlockScan scan;
+
+		int next;
+
+		/** The items moved by the current pass. */
+		int moved;
+
+		/** Whether the migration failed, leaving the block to the next one. */
+		boolean failed;
+
+		Migration(IBlock block) {
+			this.block = block;
+			this.generation = block.getGeneration();
+		}
+
+		void rewind() {
+			next = 0;
+			moved = 0;
+		}
+	}
+
+	/**
+	 * A key found in the index by a batch get.
+	 */
+	private static final class Lookup<K> {
+		final K key;
+		final WrapperKey wKey;
+		final Pointer pointer;
+
+		Lookup(K key, WrapperKey wKey, Pointer pointer) {
+			this.key = key;
+			this.wKey = wKey;
+			this.pointer = pointer;
+		}
+	}
+    
 	abstract static class DaemonWorker<K> implements Runnable {
 
 	    private WeakReference<QuickCache> cacheHolder;
 	    private ScheduledExecutorService scheduler;
+
+	    /** Whether a run resuming the work left is scheduled. */
+	    private final AtomicBoolean resuming = new AtomicBoolean();
 	    
 	    public DaemonWorker(QuickCache<K> cache) {
 			this.scheduler = cache.scheduler;
@@ -243,6 +1443,30 @@ public class QuickCache<K> implements ICache<K> {
 	        }
 	        process(cache);
 	    }
+
+	    /**
+	     * Schedules a run resuming the work a slice left, after a pause, unless one is scheduled already.
+	     * 
+	     * @param pauseNanos the pause, unit : nanosecond
+	     */
+	    protected void resume(long pauseNanos) {
+	    	ScheduledExecutorService s = scheduler;
+	    	if (s == null || !resuming.compareAndSet(false, true)) {
+	    		return;
+	    	}
+	    	try {
+	    		s.schedule(new Runnable() {
+	    			@Override
+	    			public void run() {
+	    				resuming.set(false);
+	    				DaemonWorker.this.run();
+	    			}
+	    		}, pauseNanos, TimeUnit.NANOSECONDS);
+	    	} catch (RejectedExecutionException e) {
+	    		// closing
+	    		resuming.set(false);
+	    	}
+	    }
 	    
 	    public abstract void process(QuickCache<K> cache);	    
 	}
@@ -257,43 +1481,190 @@ public class QuickCache<K> implements ICache<K> {
 		public void process(QuickCache<K> cache) {
 			
 			migrateCounter.incrementAndGet();
-			clearDirtyBlock(cache.storageManager.getDirtyBlocks());
-			clearDirtyBlock(cache.storageManager.getForeverBlocks());
-			
+			long deadline = migrateBudget.start(foregroundOps());
+			boolean done;
+			reclaimLock.lock();
+			try {
+				Set<IBlock> expiredSet = freeExpiredBlocks(deadline);
+				if (migrations.isEmpty()) {
+					Set<IBlock> dirtySet = cache.storageManager.getDirtyBlocks();
+					dirtySet.addAll(cache.storageManager.getForeverBlocks());
+					dirtySet.removeAll(expiredSet);
+					for (IBlock block : dirtySet) {
+						migrations.add(new Migration(block));
+					}
+				}
+				done = migrateDirtyBlocks(deadline);
+			} finally {
+				reclaimLock.unlock();
+			}
+			if (!done) {
+				resume(migrateBudget.getSliceNanos());
+			}
 		}
 		
-		private void clearDirtyBlock(Set<IBlock> dirtySet){
-			Set<IBlock> errorSet = new HashSet<IBlock>();
-			for (WrapperKey wKey : pointerMap.keySet()) {
-				Pointer oldPointer = pointerMap.get(wKey);
-				if(oldPointer != null) {	
-					if(dirtySet.contains(oldPointer.getBlock())) {
-						try {
-							byte[] value = oldPointer.getBlock().retrieve(oldPointer);
-							Pointer newPointer = storageManager.store(wKey.getKey(), value, oldPointer.getTtl());	
-							if(pointerMap.replace(wKey, oldPointer, newPointer)) {
-								storageManager.markDirty(oldPointer);								
-							}else {
-								storageManager.markDirty(newPointer);
-							}
-						} catch (Throwable t) {
-							migrateErrorCounter.incrementAndGet();
-							errorSet.add(oldPointer.getBlock());
-						}
+		/**
+		 * Frees the blocks whose items have all expired, unlinking their pointers through the expiry
+		 * wheel rather than reading the blocks. The blocks are left to the next run if the pointers
+		 * due are not all unlinked within the slice.
+		 * 
+		 * @return the blocks freed
+		 */
+		private Set<IBlock> freeExpiredBlocks(long deadline) {
+			long now = System.currentTimeMillis();
+			// the wheels of the segments share their ticks
+			long time = segments[0].expiryWheel.dueBefore(now);
+			Set<IBlock> expiredSet = storageManager.getExpiredBlocks(time);
+			if (expiredSet.isEmpty()) {
+				return expiredSet;
+			}
+			// puts still storing into the blocks have scheduled their pointers once done
+			readerEpoch.synchronize();
+			Iterator<IBlock> it = expiredSet.iterator();
+			while (it.hasNext()) {
+				if (it.next().getExpireTime() >= time) {
+					it.remove();
+				}
+			}
+			if (!expire(now, deadline)) {
+				return Collections.emptySet();
+			}
+			// readers may still hold the pointers unlinked
+			readerEpoch.synchronize();
+			for (IBlock block : expiredSet) {
+				block.free();
+				expiredBlockCounter.incrementAndGet();
+			}
+			storageManager.clean();
+			return expiredSet;
+		}
+
+		/**
+		 * Moves the live items out of the dirty blocks, then frees the blocks. Items are moved until the
+		 * deadline, the next slice resumes at the item this one stopped at.
+		 * 
+		 * @return false if items were left
+		 */
+		private boolean migrateDirtyBlocks(long deadline) {
+			// a block freed since, evicted or expired, is done with
+			Iterator<Migration> it = migrations.iterator();
+			while (it.hasNext()) {
+				Migration migration = it.next();
+				if (migration.block.getGeneration() != migration.generation) {
+					it.remove();
+				}
+			}
+			if (!migrationsCopied) {
+				for (Migration migration : migrations) {
+					if (!migrateItems(migration, deadline)) {
+						return false;
 					}
 				}
-				
+				// readers may still hold pointers to the migrated items, wait for them
+				readerEpoch.synchronize();
+				for (Migration migration : migrations) {
+					migration.rewind();
+				}
+				migrationsCopied = true;
 			}
-			
-			for(IBlock block:dirtySet) {
-				if(!errorSet.contains(block)) {
-					block.free();
+			// puts which were storing into the blocks meanwhile are done, move what they have linked
+			int moved = 0;
+			for (Migration migration : migrations) {
+				if (!migrateItems(migration, deadline)) {
+					return false;
+				}
+				moved += migration.moved;
+			}
+			if (moved > 0) {
+				readerEpoch.synchronize();
+			}
+			for (Migration migration : migrations) {
+				if (!migration.failed) {
+					migration.block.free();
 				}
-			}			
+			}
+			migrations.clear();
+			migrationsCopied = false;
 			storageManager.clean();
+			return true;
+		}
+
+		/**
+		 * Moves the items of the block still referenced by the index, looking each item up once, from the
+		 * item the migration is at. At least one item is visited whatever the deadline.
+		 * 
+		 * @return false if items were left
+		 */
+		private boolean migrateItems(Migration migration, long deadline) {
+			if (migration.failed) {
+				return true;
+			}
+			IBlock block = migration.block;
+			try {
+				if (migration.scan == null) {
+					block.flush();
+					migration.scan = new BlockScan(block, true).call();
+				}
+				BlockScan scan = migration.scan;
+				for (int first = migration.next; migration.next < scan.getCount(); migration.next++) {
+					if (migration.next > first && SliceBudget.isOver(deadline)) {
+						return false;
+					}
+					int i = migration.next;
+					Meta meta = scan.getMeta(i);
+					if (meta.getTtl() == Meta.TTL_DELETE) {
+						continue;
+					}
+					WrapperKey wKey = new WrapperKey(scan.getKey(i));
+					Pointer oldPointer = pointerMap.get(wKey);
+					if (oldPointer == null || oldPointer.getBlock() != block || oldPointer.getMetaOffset() != meta.getOffSet()) {
+						continue; // overwritten or deleted since
+					}
+					if (oldPointer.isExpired()) {
+						if (pointerMap.remove(wKey, oldPointer)) {
+							invalidateNear(wKey);
+							storageManager.markDirty(oldPointer);
+							addUsedSize(wKey, (oldPointer.getItemSize()+Meta.META_SIZE) * -1);
+						}
+						continue;
+					}
+					byte[] value = block.retrieve(oldPointer);
+					Pointer newPointer = storageManager.store(wKey.getKey(), value, oldPointer.getTtl());
+					if(pointerMap.replace(wKey, oldPointer, newPointer)) {
+						// the value is the same but expires later now
+						invalidateNear(wKey);
+						storageManager.markDirty(oldPointer);
+						scheduleExpiry(wKey, newPointer);
+					}else {
+						storageManager.markDirty(newPointer);
+					}
+					migration.moved++;
+				}
+				return true;
+			} catch (Throwable t) {
+				migrateErrorCounter.incrementAndGet();
+				migration.failed = true;
+				return true;
+			}
 		}
 	}
 	
+	class SyncScheduler<K> extends DaemonWorker<K> {
+
+		public SyncScheduler(QuickCache<K> cache) {
+			super(cache);
+		}
+
+		@Override
+		public void process(QuickCache<K> cache) {
+			try {
+				cache.storageManager.sync();
+			} catch (IOException e) {
+				syncErrorCounter.incrementAndGet();
+			}
+		}
+	}
+
 	class ExpireScheduler<K> extends DaemonWorker<K> {
  
 		public ExpireScheduler(QuickCache<K> cache) {
@@ -303,21 +1674,8 @@ public class QuickCache<K> implements ICache<K> {
 		@Override
 		public void process(QuickCache<K> cache) {
 			expireCounter.incrementAndGet();
-
-			for (WrapperKey wKey : pointerMap.keySet()) {
-				Pointer oldPointer = pointerMap.get(wKey);
-				if (oldPointer != null) {
-					if (oldPointer.isExpired()) {
-						try {
-							if (pointerMap.remove(wKey, oldPointer)) {							
-								storageManager.markDirty(oldPointer);
-								usedSize.addAndGet((oldPointer.getItemSize()+Meta.META_SIZE) * -1);
-							}
-						}catch(Throwable t) {
-							expireErrorCounter.incrementAndGet();
-						}
-					}
-				}
+			if (!expire(System.currentTimeMillis(), expireBudget.start(foregroundOps()))) {
+				resume(expireBudget.getSliceNanos());
 			}
 		}
 	}
@@ -350,12 +1708,67 @@ public class QuickCache<K> implements ICache<K> {
 		return migrateCounter.get();
 	}
 
+	public long getExpiredBlockCounter() {
+		return expiredBlockCounter.get();
+	}
+
+	public long getEvictedBlockCounter() {
+		return evictedBlockCounter.get();
+	}
+
+	public long getEvictedItemCounter() {
+		return evictedItemCounter.get();
+	}
+
+	public long getNearHitCounter() {
+		return nearHitCounter.get();
+	}
+
+	public long getNearMissCounter() {
+		return nearMissCounter.get();
+	}
+
+	public long getLoadCounter() {
+		return loadCounter.get();
+	}
+
+	public long getRefreshCounter() {
+		return refreshCounter.get();
+	}
+
+	public long getRejectedCounter() {
+		return rejectedCounter.get();
+	}
+
 	public long getMigrateErrorCounter() {
 		return migrateErrorCounter.get();
 	}
 
+	public long getWriteBehindErrorCounter() {
+		return writeBehindErrorCounter.get();
+	}
+
+	public long getSyncErrorCounter() {
+		return syncErrorCounter.get();
+	}
+
+	/**
+	 * Gets the number of keys with an expiry scheduled.
+	 */
+	int getScheduledCount() {
+		int count = 0;
+		for (Segment segment : segments) {
+			count += segment.deadlines.size();
+		}
+		return count;
+	}
+
 	public long getUsedSize() {
-		return usedSize.get();
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.usedSize.get();
+		}
+		return size;
 	}
 	
 	public int getCount() {
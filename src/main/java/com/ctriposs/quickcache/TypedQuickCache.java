@@ -0,0 +1,113 @@
+package com.ctriposs.quickcache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.ctriposs.quickcache.storage.Meta;
+
+/**
+ * A view of a cache putting and getting typed values, encoded with a value codec.
+ *
+ * A value is encoded straight into an array of its exact size, which is the array the cache stores. A value
+ * got is decoded from a lease of it, in MapFile and OffHeapFile modes a view of the storage block, so no
+ * intermediate array is allocated. The cache is left open when done with the view.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TypedQuickCache<K, V> {
+
+	private final ICache<K> cache;
+
+	private final IValueCodec<V> valueCodec;
+
+	/**
+	 * @param cache the cache
+	 * @param valueCodec the codec of the values
+	 */
+	public TypedQuickCache(ICache<K> cache, IValueCodec<V> valueCodec) {
+		this.cache = cache;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Puts the value with the specified key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @throws IOException
+	 */
+	public void put(K key, V value) throws IOException {
+		put(key, value, Meta.TTL_NEVER_EXPIRE);
+	}
+
+	/**
+	 * Puts the value with specified key and time to idle in milliseconds.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param ttl the time to idle value in milliseconds
+	 * @throws IOException
+	 */
+	public void put(K key, V value, long ttl) throws IOException {
+		if (value == null) {
+			throw new IllegalArgumentException("value is null");
+		}
+		byte[] bytes = new byte[valueCodec.size(value)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		valueCodec.encode(value, buffer);
+		if (buffer.hasRemaining()) {
+			throw new IllegalStateException("value encoded in " + buffer.position() + " bytes, sized " + bytes.length);
+		}
+		cache.put(key, bytes, ttl);
+	}
+
+	/**
+	 * Gets the value with the specified key.
+	 *
+	 * @param key the key
+	 * @return the value, null if there is none
+	 * @throws IOException
+	 */
+	public V get(K key) throws IOException {
+		ValueLease lease = cache.lease(key);
+		if (lease == null) {
+			return null;
+		}
+		try {
+			return valueCodec.decode(lease.getBuffer().duplicate());
+		} finally {
+			lease.close();
+		}
+	}
+
+	/**
+	 * Delete the value with the specified key.
+	 *
+	 * @param key the key
+	 * @throws IOException
+	 */
+	public void delete(K key) throws IOException {
+		cache.delete(key);
+	}
+
+	/**
+	 * Check if the cache contains the specified key.
+	 *
+	 * @param key the key
+	 * @return true, if successful
+	 * @throws IOException
+	 */
+	public boolean contains(K key) throws IOException {
+		return cache.contains(key);
+	}
+
+	/**
+	 * Gets the cache the values are put into.
+	 *
+	 * @return the cache
+	 */
+	public ICache<K> getCache() {
+		return cache;
+	}
+}
@@ -0,0 +1,52 @@
+package com.ctriposs.quickcache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A read-only view of a cached value.
+ *
+ * In MapFile and OffHeapFile modes the view is a slice of the storage block holding the value, no byte is
+ * copied, and the block is retained until the lease is closed: migrating the value elsewhere does not free
+ * the block under the view. The view must not be used once the lease is closed.
+ */
+public class ValueLease implements Closeable {
+
+	private final IBlock block;
+
+	private final ByteBuffer buffer;
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * @param block the block retained for the view, null if the view is a copy
+	 * @param buffer the view
+	 */
+	ValueLease(IBlock block, ByteBuffer buffer) {
+		this.block = block;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Get the value, from position 0 to the limit of the buffer.
+	 *
+	 * @return the read-only buffer
+	 */
+	public ByteBuffer getBuffer() {
+		if (closed.get()) {
+			throw new IllegalStateException("lease closed");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Releases the value, once per lease.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true) && block != null) {
+			block.release();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import com.ctriposs.quickcache.IBlock;
+import com.ctriposs.quickcache.utils.ByteUtil;
+
+/**
+ * Collects the meta and key of every item in a block without reading any value.
+ *
+ * The items are taken from the hint file of the block when there is one, the rest of the block is read
+ * sequentially in large chunks, values are skipped over. Items are kept in flat arrays, keys are packed
+ * in a single byte array, so a scan costs a handful of objects whatever the number of items.
+ */
+public class BlockScan implements Callable<BlockScan> {
+
+	/** The size of sequential reads. */
+	public static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final int INITIAL_ITEMS = 1024;
+
+	private final IBlock block;
+
+	private final boolean useHint;
+
+	private int count;
+	private int[] offsets = new int[INITIAL_ITEMS];
+	private long[] lastAccessTimes = new long[INITIAL_ITEMS];
+	private long[] ttls = new long[INITIAL_ITEMS];
+	private int[] keySizes = new int[INITIAL_ITEMS];
+	private int[] valueSizes = new int[INITIAL_ITEMS];
+	private int[] keyPositions = new int[INITIAL_ITEMS];
+	private byte[] keys = new byte[INITIAL_ITEMS * 16];
+	private int keysLength;
+
+	private int hintEndOffset;
+	private int endOffset;
+
+	/**
+	 * @param block the block to scan
+	 * @param useHint load the hint file of the block if there is a valid one
+	 */
+	public BlockScan(IBlock block, boolean useHint) {
+		this.block = block;
+		this.useHint = useHint;
+	}
+
+	@Override
+	public BlockScan call() throws IOException {
+		int offset = 0;
+		if (useHint && block.getFile() != null) {
+			offset = loadHint(HintFile.of(block.getFile()));
+		}
+		hintEndOffset = offset;
+		endOffset = scan(offset);
+		return this;
+	}
+
+	private int loadHint(File hintFile) throws IOException {
+		if (!hintFile.exists()) {
+			return 0;
+		}
+		HintFile.Reader reader;
+		try {
+			reader = new HintFile.Reader(hintFile);
+		} catch (IOException e) {
+			// broken hint, scan the whole block
+			return 0;
+		}
+		try {
+			while (reader.next()) {
+				Meta meta = reader.getMeta();
+				byte[] key = reader.getKey();
+				add(meta.getOffSet(), meta.getLastAccessTime(), meta.getTtl(), meta.getValueSize(), key, 0, key.length);
+			}
+			return reader.getEndOffset();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private int scan(int offset) throws IOException {
+		int capacity = (int) block.getCapacity();
+		byte[] buffer = new byte[Math.min(READ_BUFFER_SIZE, capacity)];
+		int bufferStart = offset;
+		int bufferLength = 0;
+		while (offset + Meta.META_SIZE <= capacity) {
+			int pos = offset - bufferStart;
+			if (pos + Meta.META_SIZE > bufferLength) {
+				bufferStart = offset;
+				bufferLength = Math.min(buffer.length, capacity - offset);
+				block.readBytes(bufferStart, buffer, bufferLength);
+				continue;
+			}
+			long lastAccessTime = ByteUtil.ToLong(buffer, pos + Meta.LAST_ACCESS_OFFSET);
+			if (lastAccessTime == 0) {
+				break; // nothing written from here on
+			}
+			long ttl = ByteUtil.ToLong(buffer, pos + Meta.TTL_OFFSET);
+			int keySize = ByteUtil.ToInt(buffer, pos + Meta.KEY_SIZE_OFFSET);
+			int valueSize = ByteUtil.ToInt(buffer, pos + Meta.VALUE_SIZE_OFFSET);
+			if (keySize < 0 || valueSize < 0 || (long) offset + Meta.META_SIZE + keySize + valueSize > capacity) {
+				break; // torn item
+			}
+			if (pos + Meta.META_SIZE + keySize > bufferLength) {
+				if (Meta.META_SIZE + keySize > buffer.length) {
+					buffer = new byte[Meta.META_SIZE + keySize];
+				}
+				bufferStart = offset;
+				bufferLength = Math.min(buffer.length, capacity - offset);
+				block.readBytes(bufferStart, buffer, bufferLength);
+				continue;
+			}
+			add(offset, lastAccessTime, ttl, valueSize, buffer, pos + Meta.META_SIZE, keySize);
+			offset += Meta.META_SIZE + keySize + valueSize;
+		}
+		return offset;
+	}
+
+	private void add(int offset, long lastAccessTime, long ttl, int valueSize, byte[] key, int keyOffset, int keySize) {
+		if (count == offsets.length) {
+			int newLength = count * 2;
+			offsets = Arrays.copyOf(offsets, newLength);
+			lastAccessTimes = Arrays.copyOf(lastAccessTimes, newLength);
+			ttls = Arrays.copyOf(ttls, newLength);
+			keySizes = Arrays.copyOf(keySizes, newLength);
+			valueSizes = Arrays.copyOf(valueSizes, newLength);
+			keyPositions = Arrays.copyOf(keyPositions, newLength);
+		}
+		if (keysLength + keySize > keys.length) {
+			keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysLength + keySize));
+		}
+		System.arraycopy(key, keyOffset, keys, keysLength, keySize);
+		offsets[count] = offset;
+		lastAccessTimes[count] = lastAccessTime;
+		ttls[count] = ttl;
+		keySizes[count] = keySize;
+		valueSizes[count] = valueSize;
+		keyPositions[count] = keysLength;
+		keysLength += keySize;
+		count++;
+	}
+
+	public IBlock getBlock() {
+		return block;
+	}
+
+	/**
+	 * Get the number of items found.
+	 *
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the meta of the i-th item.
+	 *
+	 * @param i the item
+	 * @return the meta
+	 */
+	public Meta getMeta(int i) {
+		Meta meta = new Meta(offsets[i]);
+		meta.setLastAccessTime(lastAccessTimes[i]);
+		meta.setTtl(ttls[i]);
+		meta.setKeySize(keySizes[i]);
+		meta.setValueSize(valueSizes[i]);
+		return meta;
+	}
+
+	/**
+	 * Get a copy of the key of the i-th item.
+	 *
+	 * @param i the item
+	 * @return the key
+	 */
+	public byte[] getKey(int i) {
+		return Arrays.copyOfRange(keys, keyPositions[i], keyPositions[i] + keySizes[i]);
+	}
+
+	/**
+	 * Get the offset where the hint ended, 0 if no hint has been loaded.
+	 *
+	 * @return the offset
+	 */
+	public int getHintEndOffset() {
+		return hintEndOffset;
+	}
+
+	/**
+	 * Get the offset right after the last item.
+	 *
+	 * @return the offset
+	 */
+	public int getEndOffset() {
+		return endOffset;
+	}
+}
@@ -0,0 +1,120 @@
+package com.ctriposs.quickcache.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often keys have been accessed recently.
+ *
+ * Each long holds sixteen 4 bits counters, a key is counted in four of them, one per hash function
+ * and each in a different long, and its frequency is the smallest of the four. Once the number of
+ * increments reaches ten times the width, all counters are halved, so old popularity fades.
+ */
+public class FrequencySketch {
+
+	private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+	/** Clears the bit shifted into each counter from the one above when halving. */
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	/** The largest count of a counter. */
+	public static final int MAX_FREQUENCY = 15;
+
+	private final AtomicLongArray table;
+
+	private final int tableMask;
+
+	/** The number of increments between two agings. */
+	private final int sampleSize;
+
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * @param expectedKeys the number of keys expected to be counted
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = 16;
+		while (width < expectedKeys && width < (1 << 30)) {
+			width <<= 1;
+		}
+		this.table = new AtomicLongArray(width);
+		this.tableMask = width - 1;
+		this.sampleSize = width <= Integer.MAX_VALUE / 10 ? width * 10 : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Gets the estimated frequency of a key.
+	 *
+	 * @param keyHash the 64 bits hash of the key
+	 * @return the frequency, from 0 to {@link #MAX_FREQUENCY}
+	 */
+	public int frequency(long keyHash) {
+		int hash = spread(keyHash);
+		int start = (hash & 3) << 2;
+		int frequency = MAX_FREQUENCY;
+		for (int i = 0; i < 4; i++) {
+			long value = table.get(indexOf(hash, i));
+			int count = (int) ((value >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Counts an access to a key, aging all counters once the sample is full.
+	 *
+	 * @param keyHash the 64 bits hash of the key
+	 */
+	public void increment(long keyHash) {
+		int hash = spread(keyHash);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), (start + i) << 2);
+		}
+		if (added && size.incrementAndGet() >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int offset) {
+		long mask = 0xfL << offset;
+		while (true) {
+			long value = table.get(index);
+			if ((value & mask) == mask) {
+				return false;
+			}
+			if (table.compareAndSet(index, value, value + (1L << offset))) {
+				return true;
+			}
+		}
+	}
+
+	private synchronized void reset() {
+		if (size.get() < sampleSize) {
+			// aged by another thread meanwhile
+			return;
+		}
+		for (int i = 0; i <= tableMask; i++) {
+			long value;
+			do {
+				value = table.get(i);
+			} while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+		}
+		size.set(size.get() / 2);
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & tableMask;
+	}
+
+	/** Folds the hash and mixes its bits. */
+	private static int spread(long keyHash) {
+		int x = (int) (keyHash ^ (keyHash >>> 32));
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
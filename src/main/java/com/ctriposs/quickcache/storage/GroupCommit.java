@@ -0,0 +1,91 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ctriposs.quickcache.IStorage;
+
+/**
+ * Shares one force of a storage among all the threads waiting for their writes to be durable.
+ *
+ * Each completed write takes the next write sequence. A thread waiting for its writes either becomes
+ * the leader, forcing the storage for every write completed so far, or waits for the running force
+ * and checks whether it covered its writes.
+ */
+public class GroupCommit {
+
+	private final IStorage storage;
+
+	/** The sequence of the last completed write. */
+	private final AtomicLong written = new AtomicLong(0);
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition forced = lock.newCondition();
+
+	/** The sequence covered by the last force, guarded by the lock. */
+	private long synced;
+
+	/** Whether a leader is forcing the storage, guarded by the lock. */
+	private boolean syncing;
+
+	public GroupCommit(IStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Records a completed write.
+	 */
+	public void written() {
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Waits until all the writes completed before the call have been forced.
+	 *
+	 * @throws IOException if the force failed
+	 */
+	public void sync() throws IOException {
+		long target = written.get();
+		lock.lock();
+		try {
+			while (synced < target) {
+				if (syncing) {
+					forced.awaitUninterruptibly();
+					continue;
+				}
+				syncing = true;
+				long covered = written.get();
+				boolean success = false;
+				lock.unlock();
+				try {
+					storage.force();
+					success = true;
+				} finally {
+					lock.lock();
+					syncing = false;
+					if (success && covered > synced) {
+						synced = covered;
+					}
+					forced.signalAll();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the pending writes, once the storage has been freed.
+	 */
+	public void reset() {
+		lock.lock();
+		try {
+			synced = written.get();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
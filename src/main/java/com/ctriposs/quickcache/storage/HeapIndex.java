@@ -0,0 +1,77 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ctriposs.quickcache.IIndex;
+
+/**
+ * The index which keeps keys and pointers on heap in a {@link ConcurrentHashMap}.
+ */
+public class HeapIndex implements IIndex {
+
+	/** The internal map. */
+	private final ConcurrentMap<WrapperKey, Pointer> pointerMap;
+
+	public HeapIndex(int concurrencyLevel) {
+		this.pointerMap = new ConcurrentHashMap<WrapperKey, Pointer>(16, 0.75f, concurrencyLevel);
+	}
+
+	@Override
+	public Pointer get(WrapperKey key) {
+		return pointerMap.get(key);
+	}
+
+	@Override
+	public Pointer put(WrapperKey key, Pointer pointer) {
+		return pointerMap.put(key, pointer);
+	}
+
+	@Override
+	public Pointer putIfAbsent(WrapperKey key, Pointer pointer) {
+		return pointerMap.putIfAbsent(key, pointer);
+	}
+
+	@Override
+	public boolean replace(WrapperKey key, Pointer oldPointer, Pointer newPointer) {
+		return pointerMap.replace(key, oldPointer, newPointer);
+	}
+
+	@Override
+	public Pointer remove(WrapperKey key) {
+		return pointerMap.remove(key);
+	}
+
+	@Override
+	public boolean remove(WrapperKey key, Pointer pointer) {
+		return pointerMap.remove(key, pointer);
+	}
+
+	@Override
+	public boolean containsKey(WrapperKey key) {
+		return pointerMap.containsKey(key);
+	}
+
+	@Override
+	public Iterator<Map.Entry<WrapperKey, Pointer>> iterator() {
+		return pointerMap.entrySet().iterator();
+	}
+
+	@Override
+	public int size() {
+		return pointerMap.size();
+	}
+
+	@Override
+	public void clear() {
+		pointerMap.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		pointerMap.clear();
+	}
+}
@@ -0,0 +1,160 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.ctriposs.quickcache.IBlock;
+import com.ctriposs.quickcache.IStorage;
+
+/**
+ * The index checkpoint of a storage block, holding the meta and key of every item but no value.
+ *
+ * Layout: a header of magic, item count, end offset and file length, followed by the items as
+ * meta offset, last access time, ttl, key size, value size and key bytes. The end offset is where
+ * the scan of the block stopped, items written after it are replayed from the block itself.
+ */
+public class HintFile {
+
+	public static final String HINT_FILE_SUFFIX = ".hint";
+
+	private static final int MAGIC = 0x51434849;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Get the hint file of a data file.
+	 *
+	 * @param dataFile the data file of a block
+	 * @return the hint file
+	 */
+	public static File of(File dataFile) {
+		String name = dataFile.getName();
+		if (name.endsWith(IStorage.DATA_FILE_SUFFIX)) {
+			name = name.substring(0, name.length() - IStorage.DATA_FILE_SUFFIX.length());
+		}
+		return new File(dataFile.getParentFile(), name + HINT_FILE_SUFFIX);
+	}
+
+	/**
+	 * Scans the block from the beginning and writes the hint of all its items.
+	 *
+	 * @param block the block
+	 * @param hintFile the destination
+	 * @throws IOException
+	 */
+	public static void write(IBlock block, File hintFile) throws IOException {
+		FileOutputStream fos = new FileOutputStream(hintFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+			out.write(new byte[HEADER_SIZE]);
+			BlockScan scan = new BlockScan(block, false).call();
+			for (int i = 0; i < scan.getCount(); i++) {
+				Meta meta = scan.getMeta(i);
+				out.writeInt(meta.getOffSet());
+				out.writeLong(meta.getLastAccessTime());
+				out.writeLong(meta.getTtl());
+				out.writeInt(meta.getKeySize());
+				out.writeInt(meta.getValueSize());
+				out.write(scan.getKey(i));
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(scan.getCount()).putInt(scan.getEndOffset()).putInt(out.size());
+			header.flip();
+			fos.getChannel().write(header, 0);
+			fos.getChannel().force(false);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Streams the items of a hint file.
+	 */
+	public static class Reader implements Closeable {
+
+		private final DataInputStream in;
+		private final int count;
+		private final int endOffset;
+		private int read;
+		private Meta meta;
+		private byte[] key;
+
+		/**
+		 * Opens a hint file.
+		 *
+		 * @param hintFile the hint file
+		 * @throws IOException if the file is not a complete hint file
+		 */
+		public Reader(File hintFile) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(hintFile), BUFFER_SIZE));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Invalid hint file " + hintFile);
+				}
+				this.count = in.readInt();
+				this.endOffset = in.readInt();
+				if (in.readInt() != hintFile.length()) {
+					throw new IOException("Incomplete hint file " + hintFile);
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Moves to the next item.
+		 *
+		 * @return false if there are no more items
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			if (read >= count) {
+				return false;
+			}
+			meta = new Meta(in.readInt());
+			meta.setLastAccessTime(in.readLong());
+			meta.setTtl(in.readLong());
+			meta.setKeySize(in.readInt());
+			meta.setValueSize(in.readInt());
+			key = new byte[meta.getKeySize()];
+			in.readFully(key);
+			read++;
+			return true;
+		}
+
+		public Meta getMeta() {
+			return meta;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		/**
+		 * Get the offset of the block where the hint ends.
+		 *
+		 * @return the end offset
+		 */
+		public int getEndOffset() {
+			return endOffset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -16,6 +16,10 @@ public class MapFileStorage implements IStorage {
 	private FileChannel fileChannel;
 	private ThreadLocalByteBuffer threadLocalBuffer;
 	private MappedByteBuffer mappedByteBuffer;
+	private final int capacity;
+
+	/** The stride of touching the mapping, the smallest common page size. */
+	private static final int PAGE_SIZE = 4096;
 
 	public MapFileStorage(String dir, int index, int capacity) throws IOException {
 		File backFile = new File(dir);
@@ -23,6 +27,7 @@ public class MapFileStorage implements IStorage {
 			backFile.mkdirs();
 		}
 		String backFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
+		this.capacity = capacity;
 		raf = new RandomAccessFile(backFileName, "rw");
 		fileChannel = raf.getChannel();
 		mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
@@ -30,8 +35,10 @@ public class MapFileStorage implements IStorage {
 	}
 	
 	public MapFileStorage(File file, int capacity) throws IOException {
+		this.capacity = capacity;
 		raf = new RandomAccessFile(file, "rw");
-		mappedByteBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		fileChannel = raf.getChannel();
+		mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
 		threadLocalBuffer = new ThreadLocalByteBuffer(mappedByteBuffer);
 	}
 
@@ -66,18 +73,77 @@ public class MapFileStorage implements IStorage {
 		buffer.get(dest);
 	}
 
+	@Override
+	public void get(int position, byte[] dest, int offset, int length) throws IOException {
+		ByteBuffer buffer = this.getLocal(position);
+		buffer.get(dest, offset, length);
+	}
+
+	@Override
+	public void get(int position, ByteBuffer dest) throws IOException {
+		dest.put(slice(position, dest.remaining()));
+	}
+
+	@Override
+	public ByteBuffer slice(int position, int length) {
+		ByteBuffer buffer = mappedByteBuffer.asReadOnlyBuffer();
+		buffer.limit(position + length);
+		buffer.position(position);
+		return buffer.slice();
+	}
+
 	@Override
 	public void put(int position, byte[] source) throws IOException {
 		ByteBuffer buffer = this.getLocal(position);
 		buffer.put(source);
 	}
 
+	@Override
+	public void putItem(int position, long lastAccessTime, long ttl, byte[] key, byte[] value) throws IOException {
+		ByteBuffer buffer = threadLocalBuffer.get();
+		buffer.putLong(position + Meta.LAST_ACCESS_OFFSET, lastAccessTime);
+		buffer.putLong(position + Meta.TTL_OFFSET, ttl);
+		buffer.putInt(position + Meta.KEY_SIZE_OFFSET, key.length);
+		buffer.putInt(position + Meta.VALUE_SIZE_OFFSET, value.length);
+		buffer.position(position + Meta.META_SIZE);
+		buffer.put(key);
+		buffer.put(value);
+	}
+
+	@Override
+	public void putItems(int position, long lastAccessTime, long ttl, byte[][] keys, byte[][] values) throws IOException {
+		for (int i = 0; i < keys.length; i++) {
+			putItem(position, lastAccessTime, ttl, keys[i], values[i]);
+			position += Meta.META_SIZE + keys[i].length + values[i].length;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// written in place, nothing buffered
+	}
+
+	@Override
+	public void prepare() throws IOException {
+		// fault the pages in for writing, rewriting what they hold
+		for (int i = 0; i < capacity; i += PAGE_SIZE) {
+			mappedByteBuffer.put(i, mappedByteBuffer.get(i));
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		mappedByteBuffer.force();
+	}
+
 	@Override
 	public void free() {
 		MappedByteBuffer buffer = (MappedByteBuffer) threadLocalBuffer.getSourceBuffer();
 		buffer.clear();
 		try {
+			// zero the file, extending it back right away as the mapping must stay backed
 			fileChannel.truncate(0);
+			raf.setLength(capacity);
 		} catch (IOException e) {
 		}
 	}
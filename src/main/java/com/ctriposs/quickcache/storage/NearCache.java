@@ -0,0 +1,185 @@
+package com.ctriposs.quickcache.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A byte bounded on-heap copy of the values of hot keys, evicted by CLOCK.
+ *
+ * Entries are queued in insertion order and flagged on each hit. When over its size, the clock hand
+ * takes the head of the queue, giving a flagged entry a second chance at the tail and evicting the
+ * others. The owner invalidates a key whenever its pointer changes; an entry is put after the value has
+ * been read, so the owner checks the pointer is still linked afterwards and removes the entry if not.
+ */
+public class NearCache {
+
+	/** The estimated heap footprint of an entry besides its key and value. */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final ConcurrentHashMap<WrapperKey, Entry> map;
+
+	/** The clock, holding each entry once, entries removed from the map are dropped when reached. */
+	private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+
+	/** The entries in the clock which are no longer in the map. */
+	private final AtomicInteger removedInClock = new AtomicInteger(0);
+
+	private final long maxSize;
+
+	private final AtomicLong size = new AtomicLong(0);
+
+	private final Lock evictLock = new ReentrantLock();
+
+	/**
+	 * @param maxSize the size of the entries, unit : byte
+	 * @param concurrencyLevel the expected number of concurrent writers
+	 */
+	public NearCache(long maxSize, int concurrencyLevel) {
+		this.maxSize = maxSize;
+		this.map = new ConcurrentHashMap<WrapperKey, Entry>(16, 0.75f, concurrencyLevel);
+	}
+
+	/**
+	 * Gets the value of a key.
+	 *
+	 * @param key the key
+	 * @return the value, null if not cached or expired, not to be modified
+	 */
+	public byte[] get(WrapperKey key) {
+		Entry entry = map.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.pointer.isExpired()) {
+			remove(key, entry);
+			return null;
+		}
+		entry.referenced = true;
+		return entry.value;
+	}
+
+	/**
+	 * Puts the value read through a pointer, evicting other entries if over the size.
+	 *
+	 * @param key the key
+	 * @param pointer the pointer the value was read through
+	 * @param value the value, kept as is
+	 * @return the entry, null if the value is too large to be cached
+	 */
+	public Entry put(WrapperKey key, Pointer pointer, byte[] value) {
+		long entrySize = key.getKey().length + value.length + ENTRY_OVERHEAD;
+		// a value taking a large share would flush the hot ones
+		if (entrySize > maxSize / 8) {
+			return null;
+		}
+		Entry entry = new Entry(key, pointer, value, entrySize);
+		Entry old = map.put(key, entry);
+		if (old != null) {
+			removed(old);
+		}
+		clock.offer(entry);
+		size.addAndGet(entrySize);
+		if (size.get() > maxSize || removedInClock.get() > map.size() + 64) {
+			evict();
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the entry of a key.
+	 *
+	 * @param key the key
+	 */
+	public void invalidate(WrapperKey key) {
+		Entry entry = map.remove(key);
+		if (entry != null) {
+			removed(entry);
+		}
+	}
+
+	/**
+	 * Removes the entry of a key if it is the one specified.
+	 *
+	 * @param key the key
+	 * @param entry the entry
+	 */
+	public void remove(WrapperKey key, Entry entry) {
+		if (map.remove(key, entry)) {
+			removed(entry);
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		for (WrapperKey key : map.keySet()) {
+			invalidate(key);
+		}
+	}
+
+	private void removed(Entry entry) {
+		size.addAndGet(-entry.size);
+		removedInClock.incrementAndGet();
+	}
+
+	/**
+	 * Turns the clock until within the size, dropping the removed entries met.
+	 */
+	private void evict() {
+		if (!evictLock.tryLock()) {
+			// another thread is on it
+			return;
+		}
+		try {
+			// each entry is passed at most twice, flagged ones being cleared the first time
+			long turns = 2L * (map.size() + removedInClock.get()) + 1;
+			Entry entry;
+			while ((size.get() > maxSize || removedInClock.get() > map.size()) && turns-- > 0
+					&& (entry = clock.poll()) != null) {
+				if (map.get(entry.key) != entry) {
+					removedInClock.decrementAndGet();
+				} else if (entry.referenced) {
+					entry.referenced = false;
+					clock.offer(entry);
+				} else {
+					remove(entry.key, entry);
+					removedInClock.decrementAndGet();
+				}
+			}
+		} finally {
+			evictLock.unlock();
+		}
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public int getCount() {
+		return map.size();
+	}
+
+	public static final class Entry {
+
+		private final WrapperKey key;
+		private final Pointer pointer;
+		private final byte[] value;
+		private final long size;
+
+		/** Set on each hit, cleared when the clock hand passes. */
+		private volatile boolean referenced;
+
+		Entry(WrapperKey key, Pointer pointer, byte[] value, long size) {
+			this.key = key;
+			this.pointer = pointer;
+			this.value = value;
+			this.size = size;
+		}
+	}
+}
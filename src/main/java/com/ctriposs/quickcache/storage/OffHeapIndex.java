@@ -0,0 +1,492 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import sun.misc.Unsafe;
+
+import com.ctriposs.quickcache.IBlock;
+import com.ctriposs.quickcache.IIndex;
+import com.ctriposs.quickcache.utils.ByteUtil;
+import com.ctriposs.quickcache.utils.UnsafeUtil;
+
+/**
+ * The index which keeps pointers in open-addressing tables allocated off heap.
+ *
+ * Each slot holds the 64-bit hash of a key and the location of its item, the key itself is not kept
+ * in the index but compared against the bytes stored in the storage block. The table is split into
+ * segments, each with its own read/write lock, and a segment doubles its table when it is 3/4 full.
+ */
+public class OffHeapIndex implements IIndex {
+
+	/** The size of a slot in bytes. */
+	public static final int SLOT_SIZE = 48;
+
+	private static final int HASH_OFFSET = 0;
+	private static final int BLOCK_INDEX_OFFSET = 8;
+	private static final int META_OFFSET_OFFSET = 12;
+	private static final int KEY_SIZE_OFFSET = 16;
+	private static final int VALUE_SIZE_OFFSET = 20;
+	private static final int LAST_ACCESS_OFFSET = 24;
+	private static final int TTL_OFFSET = 32;
+	private static final int CREATE_NANO_TIME_OFFSET = 40;
+
+	/** The hash of an empty slot. */
+	private static final long EMPTY = 0L;
+
+	private static final int INITIAL_SLOTS_PER_SEGMENT = 1024;
+
+	private static final int MAX_SLOTS_PER_SEGMENT = 1 << 30;
+
+	private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+
+	/** Resolving the block index kept in slots. */
+	private final StorageManager storageManager;
+
+	private final Segment[] segments;
+
+	private final int segmentShift;
+
+	public OffHeapIndex(StorageManager storageManager, int concurrencyLevel) {
+		this.storageManager = storageManager;
+		int segmentBits = 0;
+		while ((1 << segmentBits) < concurrencyLevel) {
+			segmentBits++;
+		}
+		this.segmentShift = 64 - segmentBits;
+		this.segments = new Segment[1 << segmentBits];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private static long hash(WrapperKey key) {
+		long hash = key.getHash();
+		return hash == EMPTY ? 1L : hash;
+	}
+
+	private Segment segmentFor(long hash) {
+		return segmentShift == 64 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+	}
+
+	@Override
+	public Pointer get(WrapperKey key) throws IOException {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.readLock.lock();
+		try {
+			int slot = segment.find(hash, key);
+			return slot < 0 ? null : segment.readPointer(slot);
+		} finally {
+			segment.readLock.unlock();
+		}
+	}
+
+	@Override
+	public Pointer put(WrapperKey key, Pointer pointer) throws IOException {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.writeLock.lock();
+		try {
+			int slot = segment.find(hash, key);
+			if (slot < 0) {
+				segment.insert(hash, pointer);
+				return null;
+			}
+			Pointer oldPointer = segment.readPointer(slot);
+			segment.writePointer(slot, hash, pointer);
+			return oldPointer;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public Pointer putIfAbsent(WrapperKey key, Pointer pointer) throws IOException {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.writeLock.lock();
+		try {
+			int slot = segment.find(hash, key);
+			if (slot < 0) {
+				segment.insert(hash, pointer);
+				return null;
+			}
+			return segment.readPointer(slot);
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean replace(WrapperKey key, Pointer oldPointer, Pointer newPointer) {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.writeLock.lock();
+		try {
+			int slot = segment.findLocation(hash, oldPointer);
+			if (slot < 0) {
+				return false;
+			}
+			segment.writePointer(slot, hash, newPointer);
+			return true;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public Pointer remove(WrapperKey key) throws IOException {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.writeLock.lock();
+		try {
+			int slot = segment.find(hash, key);
+			if (slot < 0) {
+				return null;
+			}
+			Pointer oldPointer = segment.readPointer(slot);
+			segment.delete(slot);
+			return oldPointer;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(WrapperKey key, Pointer pointer) {
+		long hash = hash(key);
+		Segment segment = segmentFor(hash);
+		segment.writeLock.lock();
+		try {
+			int slot = segment.findLocation(hash, pointer);
+			if (slot < 0) {
+				return false;
+			}
+			segment.delete(slot);
+			return true;
+		} finally {
+			segment.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(WrapperKey key) throws IOException {
+		return get(key) != null;
+	}
+
+	@Override
+	public Iterator<Map.Entry<WrapperKey, Pointer>> iterator() {
+		return new SlotIterator();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.count;
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.writeLock.lock();
+			try {
+				segment.reset();
+			} finally {
+				segment.writeLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Segment segment : segments) {
+			segment.writeLock.lock();
+			try {
+				segment.free();
+			} finally {
+				segment.writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A linear probing table guarded by a read/write lock, slots are removed with backward shift
+	 * so no tombstone is ever left in the table.
+	 */
+	private final class Segment {
+
+		private final Lock readLock;
+		private final Lock writeLock;
+
+		private long address;
+		private int capacity;
+		private int mask;
+		private int threshold;
+		private volatile int count;
+
+		Segment() {
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			this.readLock = lock.readLock();
+			this.writeLock = lock.writeLock();
+			allocate(INITIAL_SLOTS_PER_SEGMENT);
+		}
+
+		private void allocate(int slots) {
+			long bytes = (long) slots * SLOT_SIZE;
+			address = UNSAFE.allocateMemory(bytes);
+			UNSAFE.setMemory(address, bytes, (byte) 0);
+			capacity = slots;
+			mask = slots - 1;
+			threshold = (int) (slots * 0.75f);
+		}
+
+		private void ensureOpen() {
+			if (address == 0) {
+				throw new IllegalStateException("index is closed");
+			}
+		}
+
+		private long slotAddress(int slot) {
+			return address + (long) slot * SLOT_SIZE;
+		}
+
+		private long hashAt(int slot) {
+			return UNSAFE.getLong(slotAddress(slot) + HASH_OFFSET);
+		}
+
+		/**
+		 * Finds the slot of the key, keys of equal hash are compared with the bytes in the storage block.
+		 */
+		int find(long hash, WrapperKey key) throws IOException {
+			ensureOpen();
+			for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+				long h = hashAt(slot);
+				if (h == EMPTY) {
+					return -1;
+				}
+				if (h == hash) {
+					Pointer pointer = readPointer(slot);
+					if (pointer != null && ByteUtil.equals(key.getKey(), pointer.getBlock().retrieveKey(pointer))) {
+						return slot;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Finds the slot pointing to the same location as the pointer, no key comparison is needed.
+		 */
+		int findLocation(long hash, Pointer pointer) {
+			ensureOpen();
+			int blockIndex = pointer.getBlock().getIndex();
+			for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+				long h = hashAt(slot);
+				if (h == EMPTY) {
+					return -1;
+				}
+				long slotAddress = slotAddress(slot);
+				if (h == hash && UNSAFE.getInt(slotAddress + BLOCK_INDEX_OFFSET) == blockIndex
+						&& UNSAFE.getInt(slotAddress + META_OFFSET_OFFSET) == pointer.getMetaOffset()) {
+					return slot;
+				}
+			}
+		}
+
+		Pointer readPointer(int slot) {
+			long slotAddress = slotAddress(slot);
+			IBlock block = storageManager.getBlock(UNSAFE.getInt(slotAddress + BLOCK_INDEX_OFFSET));
+			if (block == null) {
+				return null;
+			}
+			return new Pointer(block,
+					UNSAFE.getInt(slotAddress + META_OFFSET_OFFSET),
+					UNSAFE.getInt(slotAddress + KEY_SIZE_OFFSET),
+					UNSAFE.getInt(slotAddress + VALUE_SIZE_OFFSET),
+					UNSAFE.getLong(slotAddress + TTL_OFFSET),
+					UNSAFE.getLong(slotAddress + LAST_ACCESS_OFFSET),
+					UNSAFE.getLong(slotAddress + CREATE_NANO_TIME_OFFSET));
+		}
+
+		void writePointer(int slot, long hash, Pointer pointer) {
+			long slotAddress = slotAddress(slot);
+			UNSAFE.putInt(slotAddress + BLOCK_INDEX_OFFSET, pointer.getBlock().getIndex());
+			UNSAFE.putInt(slotAddress + META_OFFSET_OFFSET, pointer.getMetaOffset());
+			UNSAFE.putInt(slotAddress + KEY_SIZE_OFFSET, pointer.getKeySize());
+			UNSAFE.putInt(slotAddress + VALUE_SIZE_OFFSET, pointer.getValueSize());
+			UNSAFE.putLong(slotAddress + LAST_ACCESS_OFFSET, pointer.getLastAccessTime());
+			UNSAFE.putLong(slotAddress + TTL_OFFSET, pointer.getTtl());
+			UNSAFE.putLong(slotAddress + CREATE_NANO_TIME_OFFSET, pointer.getCreateNanoTime());
+			UNSAFE.putLong(slotAddress + HASH_OFFSET, hash);
+		}
+
+		void insert(long hash, Pointer pointer) {
+			if (count >= threshold) {
+				resize();
+			}
+			int slot = (int) hash & mask;
+			while (hashAt(slot) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			writePointer(slot, hash, pointer);
+			count++;
+		}
+
+		void delete(int slot) {
+			int hole = slot;
+			for (int next = (hole + 1) & mask;; next = (next + 1) & mask) {
+				long h = hashAt(next);
+				if (h == EMPTY) {
+					break;
+				}
+				int home = (int) h & mask;
+				// the entry can not move before its home slot
+				boolean homeAfterHole = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+				if (!homeAfterHole) {
+					UNSAFE.copyMemory(slotAddress(next), slotAddress(hole), SLOT_SIZE);
+					hole = next;
+				}
+			}
+			UNSAFE.setMemory(slotAddress(hole), SLOT_SIZE, (byte) 0);
+			count--;
+		}
+
+		private void resize() {
+			if (capacity >= MAX_SLOTS_PER_SEGMENT) {
+				throw new IllegalStateException("index segment is full");
+			}
+			long oldAddress = address;
+			int oldCapacity = capacity;
+			allocate(oldCapacity << 1);
+			for (int i = 0; i < oldCapacity; i++) {
+				long oldSlotAddress = oldAddress + (long) i * SLOT_SIZE;
+				long h = UNSAFE.getLong(oldSlotAddress + HASH_OFFSET);
+				if (h != EMPTY) {
+					int slot = (int) h & mask;
+					while (hashAt(slot) != EMPTY) {
+						slot = (slot + 1) & mask;
+					}
+					UNSAFE.copyMemory(oldSlotAddress, slotAddress(slot), SLOT_SIZE);
+				}
+			}
+			UNSAFE.freeMemory(oldAddress);
+		}
+
+		void reset() {
+			ensureOpen();
+			UNSAFE.freeMemory(address);
+			allocate(INITIAL_SLOTS_PER_SEGMENT);
+			count = 0;
+		}
+
+		void free() {
+			if (address != 0) {
+				UNSAFE.freeMemory(address);
+				address = 0;
+				capacity = 0;
+				count = 0;
+			}
+		}
+	}
+
+	/**
+	 * The entry returned by the iterator, the key is read from the storage block on demand.
+	 */
+	private static final class SlotEntry implements Map.Entry<WrapperKey, Pointer> {
+
+		private final Pointer pointer;
+		private WrapperKey key;
+
+		SlotEntry(Pointer pointer) {
+			this.pointer = pointer;
+		}
+
+		@Override
+		public WrapperKey getKey() {
+			if (key == null) {
+				try {
+					key = new WrapperKey(pointer.getBlock().retrieveKey(pointer));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return key;
+		}
+
+		@Override
+		public Pointer getValue() {
+			return pointer;
+		}
+
+		@Override
+		public Pointer setValue(Pointer value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Walks the segments slot by slot, each step only holds the read lock of one segment.
+	 */
+	private final class SlotIterator implements Iterator<Map.Entry<WrapperKey, Pointer>> {
+
+		private int segmentIndex;
+		private int slot;
+		private SlotEntry next;
+
+		SlotIterator() {
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (next == null && segmentIndex < segments.length) {
+				Segment segment = segments[segmentIndex];
+				segment.readLock.lock();
+				try {
+					while (next == null && slot < segment.capacity) {
+						if (segment.hashAt(slot) != EMPTY) {
+							Pointer pointer = segment.readPointer(slot);
+							if (pointer != null) {
+								next = new SlotEntry(pointer);
+							}
+						}
+						slot++;
+					}
+				} finally {
+					segment.readLock.unlock();
+				}
+				if (next == null) {
+					segmentIndex++;
+					slot = 0;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<WrapperKey, Pointer> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			SlotEntry entry = next;
+			advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
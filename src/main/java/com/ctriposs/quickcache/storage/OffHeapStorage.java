@@ -1,14 +1,15 @@
 package com.ctriposs.quickcache.storage;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import sun.misc.Unsafe;
 
 import com.ctriposs.quickcache.IStorage;
+import com.ctriposs.quickcache.utils.UnsafeUtil;
 
 public class OffHeapStorage  implements IStorage {
 	
@@ -16,26 +17,22 @@ public class OffHeapStorage  implements IStorage {
 	protected final AtomicBoolean disposed = new AtomicBoolean(false);
 	protected ByteBuffer byteBuffer;
 
-	private static final Unsafe UNSAFE = getUnsafe();
-	private static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
+	private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+	private static final long BYTE_ARRAY_OFFSET = UnsafeUtil.BYTE_ARRAY_OFFSET;
+	
+	/** Items are stored big-endian whatever the platform, as in the file based storages. */
+	private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
 
 	private final long address;
-
-	private static Unsafe getUnsafe() {
-		try {
-			Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
-			unsafeField.setAccessible(true);
-			return (sun.misc.Unsafe) unsafeField.get(null);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-	}
+	private final int capacity;
 
 	public OffHeapStorage(int capacity) {
+		this.capacity = capacity;
 		this.address = UNSAFE.allocateMemory(capacity);
 	}
 
 	public OffHeapStorage(int capacity, ByteBuffer buffer) {
+		this.capacity = capacity;
 		this.byteBuffer = ByteBuffer.allocateDirect(capacity);
 		try {
 			Method method = byteBuffer.getClass().getDeclaredMethod("address");
@@ -60,6 +57,13 @@ public class OffHeapStorage  implements IStorage {
 		this.get(address + position, dest, BYTE_ARRAY_OFFSET, dest.length);
 	}
 
+	@Override
+	public void get(int position, byte[] dest, int offset, int length) throws IOException {
+		assert !disposed.get() : "disposed";
+		assert position >= 0 : position;
+		this.get(address + position, dest, BYTE_ARRAY_OFFSET + offset, length);
+	}
+
 	/**
 	 * Get bytes from the local buffer to a given byte array.
 	 * 
@@ -72,6 +76,17 @@ public class OffHeapStorage  implements IStorage {
 		UNSAFE.copyMemory(null, baseAddress, dest, destOffset, length);
 	}
 
+	@Override
+	public void get(int position, ByteBuffer dest) throws IOException {
+		dest.put(slice(position, dest.remaining()));
+	}
+
+	@Override
+	public ByteBuffer slice(int position, int length) {
+		assert !disposed.get() : "disposed";
+		return UnsafeUtil.newDirectBuffer(address + position, length).asReadOnlyBuffer();
+	}
+
 	@Override
 	public void put(int position, byte[] source) throws IOException {
 		assert !disposed.get() : "disposed";
@@ -80,6 +95,27 @@ public class OffHeapStorage  implements IStorage {
 
 	}
 
+	@Override
+	public void putItem(int position, long lastAccessTime, long ttl, byte[] key, byte[] value) throws IOException {
+		assert !disposed.get() : "disposed";
+		assert position >= 0 : position;
+		long baseAddress = address + position;
+		UNSAFE.putLong(baseAddress + Meta.LAST_ACCESS_OFFSET, NATIVE_BIG_ENDIAN ? lastAccessTime : Long.reverseBytes(lastAccessTime));
+		UNSAFE.putLong(baseAddress + Meta.TTL_OFFSET, NATIVE_BIG_ENDIAN ? ttl : Long.reverseBytes(ttl));
+		UNSAFE.putInt(baseAddress + Meta.KEY_SIZE_OFFSET, NATIVE_BIG_ENDIAN ? key.length : Integer.reverseBytes(key.length));
+		UNSAFE.putInt(baseAddress + Meta.VALUE_SIZE_OFFSET, NATIVE_BIG_ENDIAN ? value.length : Integer.reverseBytes(value.length));
+		this.put(BYTE_ARRAY_OFFSET, key, baseAddress + Meta.META_SIZE, key.length);
+		this.put(BYTE_ARRAY_OFFSET, value, baseAddress + Meta.META_SIZE + key.length, value.length);
+	}
+
+	@Override
+	public void putItems(int position, long lastAccessTime, long ttl, byte[][] keys, byte[][] values) throws IOException {
+		for (int i = 0; i < keys.length; i++) {
+			putItem(position, lastAccessTime, ttl, keys[i], values[i]);
+			position += Meta.META_SIZE + keys[i].length + values[i].length;
+		}
+	}
+
 	/**
 	 * Put bytes from a given byte array to the local buffer.
 	 * 
@@ -92,8 +128,24 @@ public class OffHeapStorage  implements IStorage {
 		UNSAFE.copyMemory(source, srcOffset, null, baseAddress, length);
 	}
 
+	@Override
+	public void flush() throws IOException {
+		// written in place, nothing buffered
+	}
+
+	@Override
+	public void force() throws IOException {
+		// not backed by a file
+	}
+
 	@Override
 	public void free() {
 		//do nothing
 	}
+
+	@Override
+	public void prepare() throws IOException {
+		// touches every page, also clearing what a previous use left
+		UNSAFE.setMemory(address, capacity, (byte) 0);
+	}
 }
@@ -33,6 +33,17 @@ public class Pointer {
 		this.lastAccessTime = lastAccessTime;
 		this.createNanoTime = System.nanoTime();
 	}
+
+	public Pointer(IBlock block, int metaOffset, int keySize, int valueSize, long ttl, long lastAccessTime, long createNanoTime) {
+
+		this.block = block;
+		this.metaOffset = metaOffset;
+		this.ttl = ttl;
+		this.keySize = keySize;
+		this.valueSize = valueSize;
+		this.lastAccessTime = lastAccessTime;
+		this.createNanoTime = createNanoTime;
+	}
 	
 	public IBlock getBlock() {
 		return block;
@@ -81,12 +92,18 @@ public class Pointer {
 		if (obj instanceof Pointer) {
 			Pointer other = (Pointer) obj;
 			if (this.block == other.block && 
-				this.lastAccessTime == other.lastAccessTime) {
+				this.metaOffset == other.metaOffset) {
 				return true;
 			}
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode() {
+		return 31 * block.getIndex() + metaOffset;
+	}
+
 	public long getCreateNanoTime() {
 		return createNanoTime;
 	}
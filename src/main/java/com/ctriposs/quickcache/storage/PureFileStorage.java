@@ -5,13 +5,38 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import com.ctriposs.quickcache.IStorage;
+import com.ctriposs.quickcache.utils.ByteUtil;
 
 public class PureFileStorage implements IStorage {
 
+	/** Items up to this size are encoded in a per thread buffer, larger ones in a new one. */
+	private static final int ENCODE_BUFFER_SIZE = 64 * 1024;
+
+	/** The per thread direct buffer items are encoded in when there is no write buffer. */
+	private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(ENCODE_BUFFER_SIZE);
+		}
+	};
+
+	/** The per thread array items are encoded in before being copied to the write buffer. */
+	private static final ThreadLocal<byte[]> ITEM_BYTES = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[ENCODE_BUFFER_SIZE];
+		}
+	};
+
 	private FileChannel fileChannel;
 	private RandomAccessFile raf;
+	private final int capacity;
+	
+	/** The write-back buffer, null if writes go straight to the file. */
+	private WriteBuffer writeBuffer;
 	
 	public PureFileStorage(String dir, int index, int capacity) throws IOException {
 		File dirFile = new File(dir);
@@ -20,30 +45,180 @@ public class PureFileStorage implements IStorage {
         }
 
 		String fullFileName = dir + index + "-" + System.currentTimeMillis() + DATA_FILE_SUFFIX;
+		this.capacity = capacity;
 		raf = new RandomAccessFile(fullFileName, "rw");
 		raf.setLength(capacity);
 		fileChannel = raf.getChannel();
 	}
 
 	public PureFileStorage(File file, int capacity) throws IOException {
+		this(file, capacity, 0);
+	}
+
+	public PureFileStorage(File file, int capacity, int writeBufferSize) throws IOException {
+		this.capacity = capacity;
 		raf = new RandomAccessFile(file, "rw");
 		raf.setLength(capacity);
 		fileChannel = raf.getChannel();
+		if (writeBufferSize > 0) {
+			writeBuffer = new WriteBuffer(fileChannel, writeBufferSize);
+		}
 	}
 	
 	@Override
 	public void get(int position, byte[] dest) throws IOException {
-		fileChannel.read(ByteBuffer.wrap(dest), position);
+		get(position, dest, 0, dest.length);
+	}
+
+	@Override
+	public void get(int position, byte[] dest, int offset, int length) throws IOException {
+		if (writeBuffer != null) {
+			writeBuffer.get(position, dest, offset, length);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(dest, offset, length);
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position() - offset) < 0) {
+				// beyond the end of a truncated file
+				Arrays.fill(dest, buffer.position(), offset + length, (byte) 0);
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void get(int position, ByteBuffer dest) throws IOException {
+		if (writeBuffer != null) {
+			writeBuffer.get(position, dest);
+			return;
+		}
+		int end = dest.position() + dest.remaining();
+		while (dest.hasRemaining()) {
+			int n = fileChannel.read(dest, position);
+			if (n < 0) {
+				// beyond the end of a truncated file
+				while (dest.position() < end) {
+					dest.put((byte) 0);
+				}
+				break;
+			}
+			position += n;
+		}
+	}
+
+	@Override
+	public ByteBuffer slice(int position, int length) {
+		return null;
 	}
 
 	@Override
 	public void put(int position, byte[] source) throws IOException {
-		fileChannel.write(ByteBuffer.wrap(source), position);
+		if (writeBuffer != null) {
+			writeBuffer.put(position, source, 0, source.length);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(source);
+		while (buffer.hasRemaining()) {
+			position += fileChannel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public void putItem(int position, long lastAccessTime, long ttl, byte[] key, byte[] value) throws IOException {
+		int itemSize = Meta.META_SIZE + key.length + value.length;
+		if (writeBuffer != null) {
+			byte[] bytes = itemSize <= ENCODE_BUFFER_SIZE ? ITEM_BYTES.get() : new byte[itemSize];
+			ByteUtil.toBytes(lastAccessTime, bytes, Meta.LAST_ACCESS_OFFSET);
+			ByteUtil.toBytes(ttl, bytes, Meta.TTL_OFFSET);
+			ByteUtil.toBytes(key.length, bytes, Meta.KEY_SIZE_OFFSET);
+			ByteUtil.toBytes(value.length, bytes, Meta.VALUE_SIZE_OFFSET);
+			System.arraycopy(key, 0, bytes, Meta.META_SIZE, key.length);
+			System.arraycopy(value, 0, bytes, Meta.META_SIZE + key.length, value.length);
+			writeBuffer.put(position, bytes, 0, itemSize);
+			return;
+		}
+		ByteBuffer buffer = itemSize <= ENCODE_BUFFER_SIZE ? ENCODE_BUFFER.get() : ByteBuffer.allocate(itemSize);
+		buffer.clear();
+		buffer.putLong(lastAccessTime).putLong(ttl).putInt(key.length).putInt(value.length);
+		buffer.put(key).put(value);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += fileChannel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public void putItems(int position, long lastAccessTime, long ttl, byte[][] keys, byte[][] values) throws IOException {
+		if (writeBuffer != null) {
+			for (int i = 0; i < keys.length; i++) {
+				putItem(position, lastAccessTime, ttl, keys[i], values[i]);
+				position += Meta.META_SIZE + keys[i].length + values[i].length;
+			}
+			return;
+		}
+		// the items are encoded in the per thread buffer, written each time it is full
+		ByteBuffer buffer = ENCODE_BUFFER.get();
+		buffer.clear();
+		int bufferPosition = position;
+		for (int i = 0; i < keys.length; i++) {
+			int itemSize = Meta.META_SIZE + keys[i].length + values[i].length;
+			if (itemSize > buffer.remaining()) {
+				bufferPosition = write(buffer, bufferPosition);
+			}
+			if (itemSize > buffer.remaining()) {
+				putItem(position, lastAccessTime, ttl, keys[i], values[i]);
+				bufferPosition += itemSize;
+			} else {
+				buffer.putLong(lastAccessTime).putLong(ttl).putInt(keys[i].length).putInt(values[i].length);
+				buffer.put(keys[i]).put(values[i]);
+			}
+			position += itemSize;
+		}
+		write(buffer, bufferPosition);
+	}
+
+	/**
+	 * Writes what has been put into the buffer to the specified location, then clears it.
+	 *
+	 * @return the location following the bytes written
+	 */
+	private int write(ByteBuffer buffer, int position) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += fileChannel.write(buffer, position);
+		}
+		buffer.clear();
+		return position;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (writeBuffer != null) {
+			writeBuffer.flush();
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		if (writeBuffer != null) {
+			writeBuffer.sync();
+		}
+		fileChannel.force(false);
+	}
+
+	@Override
+	public void prepare() throws IOException {
+		// a freed block has been truncated
+		if (raf.length() < capacity) {
+			raf.setLength(capacity);
+		}
 	}
 
 	@Override
 	public void free() {
-		// nothing to do here
+		if (writeBuffer != null) {
+			writeBuffer.reset();
+		}
 		try {
 			fileChannel.truncate(0);
 		} catch (IOException e) {
@@ -52,6 +227,7 @@ public class PureFileStorage implements IStorage {
 
 	@Override
 	public void close() throws IOException {
+		flush();
 		if (this.fileChannel != null) {
 			this.fileChannel.close();
 		}
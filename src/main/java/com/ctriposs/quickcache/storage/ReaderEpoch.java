@@ -0,0 +1,87 @@
+package com.ctriposs.quickcache.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tells when no reader can still hold a pointer unlinked from the index.
+ *
+ * Readers enter the current epoch before looking up the index and exit once done with the block. A
+ * reclaimer unlinks the pointers first, then calls {@link #synchronize()}, which moves to the next
+ * epoch and waits for the readers of the previous one to exit. Readers are counted per epoch parity
+ * in padded stripes, entering and exiting costs two uncontended atomic adds.
+ */
+public class ReaderEpoch {
+
+	/** Longs between two counters, keeping each on its own cache line. */
+	private static final int PADDING = 16;
+
+	private final int stripeMask;
+
+	/** The reader counts, stripes of parity 0 then stripes of parity 1. */
+	private final AtomicLongArray counters;
+
+	private volatile int epoch = 0;
+
+	private final Lock synchronizeLock = new ReentrantLock();
+
+	/**
+	 * @param concurrencyLevel the expected number of concurrent readers
+	 */
+	public ReaderEpoch(int concurrencyLevel) {
+		int stripes = 1;
+		while (stripes < concurrencyLevel) {
+			stripes <<= 1;
+		}
+		this.stripeMask = stripes - 1;
+		this.counters = new AtomicLongArray(2 * stripes * PADDING);
+	}
+
+	/**
+	 * Enters the current epoch.
+	 *
+	 * @return the ticket to exit with
+	 */
+	public int enter() {
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+		while (true) {
+			int current = epoch;
+			int ticket = ((current & 1) * (stripeMask + 1) + stripe) * PADDING;
+			counters.incrementAndGet(ticket);
+			if (current == epoch) {
+				return ticket;
+			}
+			// moved on meanwhile, the reclaimer may have missed us
+			counters.decrementAndGet(ticket);
+		}
+	}
+
+	/**
+	 * Exits the epoch entered.
+	 *
+	 * @param ticket the ticket got on enter
+	 */
+	public void exit(int ticket) {
+		counters.decrementAndGet(ticket);
+	}
+
+	/**
+	 * Waits until all readers entered before the call have exited.
+	 */
+	public void synchronize() {
+		synchronizeLock.lock();
+		try {
+			int previous = epoch;
+			epoch = previous + 1;
+			int from = (previous & 1) * (stripeMask + 1);
+			for (int stripe = 0; stripe <= stripeMask; stripe++) {
+				while (counters.get((from + stripe) * PADDING) != 0) {
+					Thread.yield();
+				}
+			}
+		} finally {
+			synchronizeLock.unlock();
+		}
+	}
+}
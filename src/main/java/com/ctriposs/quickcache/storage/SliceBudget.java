@@ -0,0 +1,85 @@
+package com.ctriposs.quickcache.storage;
+
+/**
+ * The time a background task runs for at most before yielding, adapting to the foreground load.
+ *
+ * The rate of foreground operations is sampled at the start of each slice. While it is above its moving
+ * average the slice is halved, else it grows back by the minimum slice, so maintenance backs off as soon as
+ * the load rises and catches up once it settles. Deadlines are in {@link System#nanoTime()}.
+ */
+public class SliceBudget {
+
+	/** The deadline of a slice without a time limit. */
+	public static final long UNBOUNDED = Long.MIN_VALUE;
+
+	/** The weight of a new rate in the moving average, 1/8. */
+	private static final int AVERAGE_SHIFT = 3;
+
+	private final long minSliceNanos;
+	private final long maxSliceNanos;
+
+	private long sliceNanos;
+
+	private long lastOps = -1;
+	private long lastNanos;
+	/** The moving average of the foreground rate, negative until sampled. */
+	private double averageRate = -1;
+
+	/**
+	 * @param maxSliceMillis the longest slice, unit : millisecond, 0 for slices without a time limit
+	 */
+	public SliceBudget(long maxSliceMillis) {
+		this.maxSliceNanos = maxSliceMillis * 1000 * 1000;
+		this.minSliceNanos = Math.max(1, maxSliceNanos / 16);
+		this.sliceNanos = maxSliceNanos;
+	}
+
+	/**
+	 * Starts a slice.
+	 *
+	 * @param foregroundOps the number of foreground operations so far
+	 * @return the deadline of the slice, {@link #UNBOUNDED} if it has no time limit
+	 */
+	public synchronized long start(long foregroundOps) {
+		if (maxSliceNanos == 0) {
+			return UNBOUNDED;
+		}
+		long now = System.nanoTime();
+		if (lastOps >= 0 && now > lastNanos) {
+			double rate = 1.0 * (foregroundOps - lastOps) / (now - lastNanos);
+			if (averageRate < 0) {
+				averageRate = rate;
+			}
+			if (rate == 0) {
+				sliceNanos = maxSliceNanos;
+			} else if (rate > averageRate) {
+				sliceNanos = Math.max(minSliceNanos, sliceNanos / 2);
+			} else {
+				sliceNanos = Math.min(maxSliceNanos, sliceNanos + minSliceNanos);
+			}
+			averageRate += (rate - averageRate) / (1 << AVERAGE_SHIFT);
+		}
+		lastOps = foregroundOps;
+		lastNanos = now;
+		return now + sliceNanos;
+	}
+
+	/**
+	 * Gets the time of the last slice started.
+	 *
+	 * @return the time, unit : nanosecond, 0 if slices have no time limit
+	 */
+	public synchronized long getSliceNanos() {
+		return sliceNanos;
+	}
+
+	/**
+	 * Whether the deadline of a slice has passed.
+	 *
+	 * @param deadline the deadline
+	 * @return true if it has
+	 */
+	public static boolean isOver(long deadline) {
+		return deadline != UNBOUNDED && System.nanoTime() - deadline > 0;
+	}
+}
@@ -2,7 +2,9 @@ package com.ctriposs.quickcache.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import com.ctriposs.quickcache.CacheConfig.StorageMode;
 import com.ctriposs.quickcache.IBlock;
 import com.ctriposs.quickcache.IStorage;
@@ -34,29 +36,38 @@ public class StorageBlock implements IBlock {
 	/** The never expire size*/
 	private final AtomicInteger foreverStorage = new AtomicInteger(0);
 	
+	/** The time after which all stored items have expired. */
+	private final AtomicLong expireTime = new AtomicLong(0);
+	
+	/** The number of stores which have been allocated but not yet written. */
+	private final AtomicInteger pendingWrites = new AtomicInteger(0);
+	
+	/** Bumped each time the block is freed. */
+	private final AtomicInteger generation = new AtomicInteger(0);
+	
+	/** The backing file, null for off-heap block. */
+	private final File file;
+	
+	/** The number of retainers, -1 while freeing. */
+	private final AtomicInteger retainers = new AtomicInteger(0);
+	
+	/** Whether a free is waiting for the retainers to release the block. */
+	private volatile boolean freePending = false;
+	
+	/** Shares forces of the underlying storage among concurrent syncs. */
+	private final GroupCommit groupCommit;
+	
 	/**
 	 * Instantiates a new storage block.
 	 *
 	 * @param dir the directory
 	 * @param index the index
 	 * @param capacity the capacity
+	 * @param writeBufferSize the size of the write-back buffer of a PureFile block, 0 for none
 	 * @throws IOException exception throws when failing to create the storage block
 	 */
-	public StorageBlock(String dir, int index, int capacity, StorageMode storageMode) throws IOException{
-		this.index = index;
-		this.capacity = capacity;
-		this.storageMode = storageMode;
-		switch (storageMode) {
-		case PureFile:
-			this.underlyingStorage = new PureFileStorage(dir, index, capacity);
-			break;
-		case MapFile:
-			this.underlyingStorage = new MapFileStorage(dir, index, capacity);
-			break;
-		case OffHeapFile:
-			this.underlyingStorage = new OffHeapStorage(capacity);
-			break;
-		}
+	public StorageBlock(String dir, int index, int capacity, StorageMode storageMode, int writeBufferSize) throws IOException{
+		this(newFile(dir, index), index, capacity, storageMode, writeBufferSize);
 	}
 	
 	/**
@@ -65,79 +76,133 @@ public class StorageBlock implements IBlock {
 	 * @param file the directory
 	 * @param index the index
 	 * @param capacity the capacity
+	 * @param writeBufferSize the size of the write-back buffer of a PureFile block, 0 for none
 	 * @throws IOException exception throws when failing to create the storage block
 	 */
-	public StorageBlock(File file, int index, int capacity, StorageMode storageMode) throws IOException{
+	public StorageBlock(File file, int index, int capacity, StorageMode storageMode, int writeBufferSize) throws IOException{
 		this.index = index;
 		this.capacity = capacity;
 		this.storageMode = storageMode;
 		switch (storageMode) {
             case PureFile:
-                this.underlyingStorage = new PureFileStorage(file, capacity);
+                this.underlyingStorage = new PureFileStorage(file, capacity, writeBufferSize);
+                this.file = file;
                 break;
             case MapFile:
                 this.underlyingStorage = new MapFileStorage(file, capacity);
+                this.file = file;
                 break;
             case OffHeapFile:
                 this.underlyingStorage = new OffHeapStorage(capacity);
+                this.file = null;
                 break;
+            default:
+                throw new IllegalArgumentException("Unknown storage mode " + storageMode);
+		}
+		this.groupCommit = new GroupCommit(underlyingStorage);
+	}
+	
+	private static File newFile(String dir, int index) {
+		File dirFile = new File(dir);
+		if (!dirFile.exists()) {
+			dirFile.mkdirs();
 		}
+		return new File(dir + index + "-" + System.currentTimeMillis() + IStorage.DATA_FILE_SUFFIX);
 	}
 	
 	/**
-	 * Stores the payload by the help of allocation.
+	 * Stores the payload at the allocated offset.
 	 *
-	 * @param allocation the allocation
+	 * @param metaOffset the allocated offset
 	 * @return the pointer
 	 * @throws IOException 
 	 */
-	public Pointer store(Allocation allocation, byte[] key, byte[] value, long ttl) throws IOException {
-		Pointer pointer = new Pointer(this, allocation.metaOffset, key.length, value.length, ttl);
-		underlyingStorage.put(allocation.metaOffset, makeItemBytes(pointer, key, value));
+	private Pointer store(int metaOffset, byte[] key, byte[] value, long ttl) throws IOException {
+		Pointer pointer = new Pointer(this, metaOffset, key.length, value.length, ttl);
+		underlyingStorage.putItem(metaOffset, pointer.getLastAccessTime(), pointer.getTtl(), key, value);
+		groupCommit.written();
 		// used storage update
 		int useSize = pointer.getItemSize() + Meta.META_SIZE;
 		usedStorage.addAndGet(useSize);
 		if(ttl == Meta.TTL_NEVER_EXPIRE){
 			foreverStorage.addAndGet(useSize);
 		}
+		extendExpireTime(pointer.getLastAccessTime(), ttl);
 		return pointer;
 	}
 
 	
-	private byte[] makeItemBytes(Pointer pointer,byte[] key, byte[] value) {
-		byte[] bytes = new byte[Meta.META_SIZE + key.length + value.length];
-		System.arraycopy(ByteUtil.toBytes(pointer.getLastAccessTime()), 0, bytes, Meta.LAST_ACCESS_OFFSET, 8);
-		System.arraycopy(ByteUtil.toBytes(pointer.getTtl()), 0, bytes, Meta.TTL_OFFSET, 8);		
-		System.arraycopy(ByteUtil.toBytes(key.length), 0, bytes, Meta.KEY_SIZE_OFFSET, 4);
-		System.arraycopy(ByteUtil.toBytes(value.length), 0, bytes, Meta.VALUE_SIZE_OFFSET, 4);
-		System.arraycopy(key, 0, bytes, Meta.META_SIZE, key.length);
-		System.arraycopy(value, 0, bytes, Meta.META_SIZE + key.length, value.length);
-		return bytes;
-	}
-
 	@Override
 	public Pointer store(byte[] key, byte[] value, long ttl) throws IOException {
 		int payloadLength = key.length + value.length;
-		Allocation allocation = allocate(payloadLength);
-		if (allocation == null)
-            return null; // not enough storage available
+		// counted before allocating, so no allocated store is missed by awaitPendingWrites
+		pendingWrites.incrementAndGet();
+		try {
+			int metaOffset = allocate(payloadLength);
+			if (metaOffset < 0)
+	            return null; // not enough storage available
+
+	        return store(metaOffset, key, value, ttl);
+		} finally {
+			pendingWrites.decrementAndGet();
+		}
+	}
+	
+	@Override
+	public Pointer[] storeAll(byte[][] keys, byte[][] values, long ttl) throws IOException {
+		int length = 0;
+		for (int i = 0; i < keys.length; i++) {
+			length += Meta.META_SIZE + keys[i].length + values[i].length;
+		}
+		pendingWrites.incrementAndGet();
+		try {
+			int metaOffset = allocate(length - Meta.META_SIZE);
+			if (metaOffset < 0)
+				return null; // not enough storage available
 
-        return store(allocation, key, value, ttl);
+			long lastAccessTime = System.currentTimeMillis();
+			Pointer[] pointers = new Pointer[keys.length];
+			int offset = 0;
+			for (int i = 0; i < keys.length; i++) {
+				pointers[i] = new Pointer(this, metaOffset + offset, keys[i].length, values[i].length, ttl, lastAccessTime);
+				offset += Meta.META_SIZE + keys[i].length + values[i].length;
+			}
+			underlyingStorage.putItems(metaOffset, lastAccessTime, ttl, keys, values);
+			groupCommit.written();
+			usedStorage.addAndGet(length);
+			if(ttl == Meta.TTL_NEVER_EXPIRE){
+				foreverStorage.addAndGet(length);
+			}
+			extendExpireTime(lastAccessTime, ttl);
+			return pointers;
+		} finally {
+			pendingWrites.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Waits until all allocated stores have been written, only meaningful once the block
+	 * is not appended to any more.
+	 */
+	private void awaitPendingWrites() {
+		while (pendingWrites.get() > 0) {
+			Thread.yield();
+		}
 	}
 
 	/**
-	 * Allocates storage for the payload, return null if not enough storage available.
+	 * Allocates storage for the payload, return -1 if not enough storage available.
 	 *
 	 * @param payloadLength the payload
-	 * @return the allocation
+	 * @return the offset of the item meta
 	 */
-	protected Allocation allocate(int payloadLength) {
+	protected int allocate(int payloadLength) {
 		
 		int itemOffset = currentItemOffset.addAndGet(Meta.META_SIZE+payloadLength);
 		if(capacity < itemOffset){
-			return null;
+			return -1;
 		}
-        return new Allocation(itemOffset - payloadLength - Meta.META_SIZE);
+        return itemOffset - payloadLength - Meta.META_SIZE;
 	}
 
 
@@ -148,6 +213,25 @@ public class StorageBlock implements IBlock {
 		return bytes;
 	}
 
+	@Override
+	public byte[] retrieveKey(Pointer pointer) throws IOException {
+		byte bytes[] = new byte[pointer.getKeySize()];
+		underlyingStorage.get(pointer.getMetaOffset() + Meta.META_SIZE, bytes);
+		return bytes;
+	}
+
+	@Override
+	public void retrieve(Pointer pointer, ByteBuffer dest) throws IOException {
+		ByteBuffer valueDest = dest.duplicate();
+		valueDest.limit(valueDest.position() + pointer.getValueSize());
+		underlyingStorage.get(pointer.getMetaOffset() + Meta.META_SIZE + pointer.getKeySize(), valueDest);
+		dest.position(valueDest.position());
+	}
+
+	@Override
+	public ByteBuffer retrieveView(Pointer pointer) {
+		return underlyingStorage.slice(pointer.getMetaOffset() + Meta.META_SIZE + pointer.getKeySize(), pointer.getValueSize());
+	}
 
 	@Override
 	public int markDirty(int dirtySize) {
@@ -161,25 +245,6 @@ public class StorageBlock implements IBlock {
 		}
 	}
 
-	/**
-	 * The Class Allocation.
-	 */
-	private static class Allocation {
-		
-		/** The item offset. */
-		private int metaOffset;
-	
-		
-		/**
-		 * Instantiates a new allocation.
-		 *
-		 * @param metaOffset offset
-		 */
-		public Allocation(int metaOffset) {
-			this.metaOffset = metaOffset;
-		}
-	}
-	
 	@Override
 	public long getDirty() {
 		return dirtyStorage.get();
@@ -205,12 +270,76 @@ public class StorageBlock implements IBlock {
 		return index;
 	}
 
+	@Override
+	public void prepare() throws IOException {
+		underlyingStorage.prepare();
+	}
+
 	@Override
 	public void free() {
+		freePending = true;
+		tryFree();
+	}
+
+	@Override
+	public int getGeneration() {
+		return generation.get();
+	}
+
+	private void tryFree() {
+		if (retainers.compareAndSet(0, -1)) {
+			try {
+				if (freePending) {
+					freePending = false;
+					doFree();
+				}
+			} finally {
+				retainers.set(0);
+			}
+		}
+	}
+
+	@Override
+	public boolean retain() {
+		while (true) {
+			int current = retainers.get();
+			if (current < 0 || freePending) {
+				return false;
+			}
+			if (retainers.compareAndSet(current, current + 1)) {
+				if (freePending) {
+					// the free has to wait for us, do not hold it any longer
+					release();
+					return false;
+				}
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		if (retainers.decrementAndGet() == 0 && freePending) {
+			tryFree();
+		}
+	}
+
+	@Override
+	public boolean isRetained() {
+		return retainers.get() > 0 || freePending;
+	}
+
+	private void doFree() {
+		generation.incrementAndGet();
+		if (file != null) {
+			HintFile.of(file).delete();
+		}
 		dirtyStorage.set(0);
 		usedStorage.set(0);
 		foreverStorage.set(0);
+		expireTime.set(0);
 		currentItemOffset.set(0); 
+		groupCommit.reset();
 		underlyingStorage.free();
 	}
 
@@ -226,7 +355,11 @@ public class StorageBlock implements IBlock {
 	}
 
 	
+	@Override
 	public Meta readMeta(int offset) throws IOException {
+		if (offset + Meta.META_SIZE > capacity) {
+			return null;
+		}
 		Meta meta = new Meta(offset);
 		//read meta
 		byte[] bytes = new byte[Meta.META_SIZE];
@@ -235,6 +368,9 @@ public class StorageBlock implements IBlock {
 		byte[] n = new byte[4];
 		System.arraycopy(bytes, Meta.LAST_ACCESS_OFFSET, l, 0, l.length);
 		meta.setLastAccessTime(ByteUtil.ToLong(l));		
+		if (0 == meta.getLastAccessTime()) {
+			return null;
+		}
 		System.arraycopy(bytes, Meta.TTL_OFFSET, l, 0, l.length);
 		meta.setTtl(ByteUtil.ToLong(l));
 		System.arraycopy(bytes, Meta.KEY_SIZE_OFFSET, n, 0, n.length);
@@ -246,27 +382,65 @@ public class StorageBlock implements IBlock {
 
 	@Override
 	public Item readItem(int offset) throws IOException {
-		if(offset < capacity) {
-			Meta meta = readMeta(offset);
-			if(0==meta.getLastAccessTime()) {
-				return null;
-			}
-			
-			Item item = new Item(meta);
-			//read item
-			byte[] bytes = new byte[meta.getKeySize() + meta.getValueSize()];
-			underlyingStorage.get(meta.getOffSet() + Meta.META_SIZE, bytes);		
-			byte[] key = new byte[meta.getKeySize()];		
-			System.arraycopy(bytes, 0, key, 0, key.length);
-			byte[] value = new byte[meta.getValueSize()];		
-			System.arraycopy(bytes, key.length, value, 0, value.length);		
-			item.setKey(key);
-			item.setValue(value);
-			return item;
-			
-		}else {
+		Meta meta = readMeta(offset);
+		if (meta == null) {
 			return null;
 		}
+		
+		Item item = new Item(meta);
+		//read item
+		byte[] bytes = new byte[meta.getKeySize() + meta.getValueSize()];
+		underlyingStorage.get(meta.getOffSet() + Meta.META_SIZE, bytes);		
+		byte[] key = new byte[meta.getKeySize()];		
+		System.arraycopy(bytes, 0, key, 0, key.length);
+		byte[] value = new byte[meta.getValueSize()];		
+		System.arraycopy(bytes, key.length, value, 0, value.length);		
+		item.setKey(key);
+		item.setValue(value);
+		return item;
+	}
+
+	@Override
+	public void readBytes(int offset, byte[] dest, int length) throws IOException {
+		underlyingStorage.get(offset, dest, 0, length);
+	}
+
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		awaitPendingWrites();
+		underlyingStorage.flush();
+	}
+
+	@Override
+	public void sync() throws IOException {
+		groupCommit.sync();
+	}
+
+	@Override
+	public void writeHint() throws IOException {
+		if (file == null) {
+			return;
+		}
+		int gen = generation.get();
+		awaitPendingWrites();
+		// the hint is forced, so the items it describes have to be on disk before it whatever the durability
+		sync();
+		File hintFile = HintFile.of(file);
+		File tmpFile = new File(hintFile.getPath() + ".tmp");
+		HintFile.write(this, tmpFile);
+		// the block may have been freed and reused while scanning
+		if (gen == generation.get()) {
+			hintFile.delete();
+			if (tmpFile.renameTo(hintFile)) {
+				return;
+			}
+		}
+		tmpFile.delete();
 	}
 
 	@Override
@@ -283,4 +457,21 @@ public class StorageBlock implements IBlock {
 		return (getForever() * 1.0) / getCapacity();
 	}
 
+	@Override
+	public long getExpireTime() {
+		return expireTime.get();
+	}
+
+	@Override
+	public void extendExpireTime(long lastAccessTime, long ttl) {
+		// delete items have to outlive the items they delete
+		long time = ttl > 0 && lastAccessTime >= 0 ? lastAccessTime + ttl : Long.MAX_VALUE;
+		long current;
+		while ((current = expireTime.get()) < time) {
+			if (expireTime.compareAndSet(current, time)) {
+				return;
+			}
+		}
+	}
+
 }
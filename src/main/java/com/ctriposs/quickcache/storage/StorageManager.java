@@ -2,6 +2,9 @@ package com.ctriposs.quickcache.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -10,15 +13,27 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.ctriposs.quickcache.CacheConfig.Durability;
 import com.ctriposs.quickcache.CacheConfig.StartMode;
 import com.ctriposs.quickcache.CacheConfig.StorageMode;
 import com.ctriposs.quickcache.IBlock;
+import com.ctriposs.quickcache.IIndex;
+import com.ctriposs.quickcache.IStorage;
 import com.ctriposs.quickcache.utils.FileUtil;
 
 public class StorageManager {
@@ -37,18 +52,43 @@ public class StorageManager {
 	 */
 	public static final long DEFAULT_MAX_OFFHEAP_MEMORY_SIZE = 2 * 1024 * 1024 * 1024L; // Unit: GB
 	
+	/**
+	 * The Constant DEFAULT_WRITE_BUFFER_SIZE.
+	 */
+	public static final int DEFAULT_WRITE_BUFFER_SIZE = 1024 * 1024; // 1M
+	
+	/**
+	 * The upper bounds of the time to idle of the TTL classes, above the class of the items never expiring.
+	 */
+	private static final long[] TTL_CLASS_LIMITS = {60 * 1000L, 10 * 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+	
+	/**
+	 * The number of TTL classes, each appending to its own active blocks.
+	 */
+	public static final int TTL_CLASSES = TTL_CLASS_LIMITS.length + 2;
+	
 	/** 
 	 * keep track of the number of blocks allocated 
 	 */
 	private final AtomicInteger blockCount = new AtomicInteger(0);
+
+	/**
+	 * All blocks ever allocated, indexed by the block index
+	 */
+	private volatile IBlock[] blockTable = new IBlock[0];
 	
-	/** The active storage block change lock. */
-	private final Lock activeBlockChangeLock = new ReentrantLock();
+	/**
+	 * The number of active blocks of a TTL class, writers are spread over them by thread
+	 */
+	private final int stripes;
+	
+	/** The active storage block change locks, by TTL class then stripe. */
+	private final Lock[] activeBlockChangeLocks;
 
 	/**
-	 * Current active block for appending new cache data
+	 * Current active blocks for appending new cache data, by TTL class then stripe, null until first stored to
 	 */
-	private volatile IBlock activeBlock;
+	private final AtomicReferenceArray<IBlock> activeBlocks;
 	
 	/**
 	 *  A list of used storage blocks
@@ -60,6 +100,21 @@ public class StorageManager {
 	 */
 	private final Queue<IBlock> freeBlocks = new PriorityBlockingQueue<IBlock>();
 	
+	/**
+	 * The number of free blocks kept prepared for the next rollovers.
+	 */
+	private static final int STANDBY_BLOCKS = 1;
+	
+	/**
+	 *  Free blocks prepared in the background, rollovers take them first.
+	 */
+	private final Queue<IBlock> standbyBlocks = new ConcurrentLinkedQueue<IBlock>();
+	
+	/**
+	 * Whether a prepare task has been submitted and not run yet.
+	 */
+	private final AtomicBoolean preparing = new AtomicBoolean(false);
+	
 	/**
 	 * Current storage mode
 	 */
@@ -90,10 +145,80 @@ public class StorageManager {
 	 */
 	private int allowedOffHeapModeBlockCount;
 	
+	/**
+	 * The number of blocks puts may create, beyond which the oldest block is evicted instead.
+	 */
+	private final int maxBlockCount;
+	
+	/**
+	 * The size of the write-back buffer of each PureFile block, 0 for none.
+	 */
+	private final int writeBufferSize;
+	
+	/**
+	 * When stored items are forced to the disk.
+	 */
+	private final Durability durability;
+	
+	/**
+	 * The bytes stored between two forces in Periodic durability, 0 for none.
+	 */
+	private final long syncBytes;
+	
+	/**
+	 * The bytes stored since the last size based force.
+	 */
+	private final AtomicLong unsyncedBytes = new AtomicLong(0);
+	
+	/**
+	 * Writes hint files of sealed blocks in the background
+	 */
+	private final ExecutorService hintWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "quickcache-hint-writer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Prepares the standby blocks in the background
+	 */
+	private final ExecutorService blockPreparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "quickcache-block-preparer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	
 	public StorageManager(String dir, int capacityPerBlock, int initialNumberOfBlocks, StorageMode storageMode,
-			long maxOffHeapMemorySize, double dirtyRatioThreshold, StartMode startMode) throws IOException {
+			long maxOffHeapMemorySize, double dirtyRatioThreshold, StartMode startMode, int writeBufferSize,
+			Durability durability, long syncBytes, int concurrencyLevel, long maxTotalCapacity) throws IOException {
+		if (maxTotalCapacity > 0) {
+			this.maxBlockCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxTotalCapacity / capacityPerBlock));
+		} else {
+			this.maxBlockCount = Integer.MAX_VALUE;
+		}
+		// no more stripes than cores can append at once
+		int maxStripes = Math.max(1, Math.min(concurrencyLevel, Runtime.getRuntime().availableProcessors()));
+		int stripes = 1;
+		while (stripes * 2 <= maxStripes) {
+			stripes <<= 1;
+		}
+		this.stripes = stripes;
+		this.activeBlocks = new AtomicReferenceArray<IBlock>(TTL_CLASSES * stripes);
+		this.activeBlockChangeLocks = new Lock[TTL_CLASSES * stripes];
+		for (int i = 0; i < activeBlockChangeLocks.length; i++) {
+			activeBlockChangeLocks[i] = new ReentrantLock();
+		}
 		this.dirtyRatioThreshold = dirtyRatioThreshold;
+		this.writeBufferSize = writeBufferSize;
+		this.durability = durability;
+		this.syncBytes = syncBytes;
 		this.storageMode = storageMode;
 		this.startMode = startMode;
 		this.capacityPerBlock = capacityPerBlock;
@@ -104,6 +229,7 @@ public class StorageManager {
 			this.allowedOffHeapModeBlockCount = 0;
 		}
 		initializeBlocks(new File(dir), initialNumberOfBlocks);
+		prepareStandbyBlocks();
 	}
 	
 	private void initializeBlocks(File directory, int initialNumberOfBlocks) throws IOException {
@@ -114,111 +240,252 @@ public class StorageManager {
                 list = FileUtil.listFiles(directory);
                 break;
             case RecoveryFromFile:
-                list = FileUtil.listFiles(directory);
+                list = new ArrayList<File>();
+                for(File file : FileUtil.listFiles(directory)) {
+                	// hint and temporary files live in the same directory
+                	if (file.getName().endsWith(IStorage.DATA_FILE_SUFFIX)) {
+                		list.add(file);
+                	}
+                }
+                dropOldestFiles(list);
                 for(File file : list) {
-                    IBlock block = new StorageBlock(file, blockCount.incrementAndGet(), this.capacityPerBlock, storageMode);
+                    IBlock block = new StorageBlock(file, blockCount.getAndIncrement(), this.capacityPerBlock, storageMode, writeBufferSize);
+                    registerBlock(block);
                     usedBlocks.add(block);                   
                 }
                 break;
 		}
 				
-		for (int i = list.size(); i < initialNumberOfBlocks; i++) {
-			IBlock block = createNewBlock(i);
+		for (int i = list.size(); i < Math.min(initialNumberOfBlocks, maxBlockCount); i++) {
+			IBlock block = createNewBlock(blockCount.getAndIncrement());
 			freeBlocks.offer(block);
-			blockCount.incrementAndGet();
 		}		
-		this.activeBlock = freeBlocks.poll();
-		if(this.activeBlock == null) {
-			this.activeBlock = new StorageBlock(dir, blockCount.incrementAndGet(), this.capacityPerBlock, storageMode);
+		IBlock activeBlock = freeBlocks.poll();
+		if(activeBlock == null) {
+			activeBlock = createNewBlock(blockCount.getAndIncrement());
+		}
+		activeBlocks.set(0, activeBlock);
+	}
+
+	/**
+	 * Keeps the data files recovered within the bound, leaving room for the active block. The files written
+	 * the longest ago are deleted with their hints, as eviction would have done, and the rest are sorted
+	 * oldest first.
+	 */
+	private void dropOldestFiles(List<File> list) {
+		Collections.sort(list, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		int keep = Math.max(0, maxBlockCount - 1);
+		while (list.size() > keep) {
+			File file = list.remove(0);
+			HintFile.of(file).delete();
+			file.delete();
+		}
+	}
+
+	private synchronized void registerBlock(IBlock block) {
+		IBlock[] table = blockTable;
+		if (block.getIndex() >= table.length) {
+			IBlock[] newTable = new IBlock[Math.max(block.getIndex() + 1, table.length * 2)];
+			System.arraycopy(table, 0, newTable, 0, table.length);
+			table = newTable;
 		}
+		table[block.getIndex()] = block;
+		blockTable = table;
+	}
+
+	/**
+	 * Get the block with the specified index
+	 * @param index the block index
+	 * @return the block, or null if no such block
+	 */
+	public IBlock getBlock(int index) {
+		IBlock[] table = blockTable;
+		return index >= 0 && index < table.length ? table[index] : null;
 	}
 	
-	public void loadPointerMap(ConcurrentMap<WrapperKey, Pointer> map)throws IOException {
+	/**
+	 * Rebuilds the index from the used blocks.
+	 * 
+	 * Blocks are scanned in parallel, each from its hint plus the items written after it, and the scans are
+	 * merged into the map one block at a time in the order of the used blocks. At most a few scans wait for
+	 * merging at any time, so the memory held is bounded by a few blocks worth of keys.
+	 * 
+	 * @param map the index to fill
+	 * @throws IOException
+	 */
+	public void loadPointerMap(IIndex map)throws IOException {
         synchronized (this) {
         	Map<WrapperKey, Long> deleteMap = new HashMap<WrapperKey, Long>();
-        	Iterator<IBlock> it = usedBlocks.iterator();
-        	
-        	while (it.hasNext()) {
-        		IBlock block = it.next();
-        		Item item = block.readItem(0);
-        		if(item==null) {
-        			it.remove();
-					freeBlocks.offer(block);
-					continue;
-        		}
-        		int usedSize = 0;
-        		while(item != null) {
-        			Meta meta = item.getMeta();
-        			if(meta != null) {
-        				usedSize += (meta.getKeySize()+meta.getValueSize()+Meta.META_SIZE);
-        				//collect all delete meta 
-        				WrapperKey wKey = new WrapperKey(item.getKey());
-        				if(meta.getTtl() == Meta.TTL_DELETE) {
-        					Long accesstime = deleteMap.get(wKey);
-        					if(accesstime == null) {
-        						accesstime = meta.getLastAccessTime();
-        						deleteMap.put(wKey, accesstime);
-        						
-        					}else {
-        						if(accesstime <= meta.getLastAccessTime()) {
-            						accesstime = meta.getLastAccessTime();
-            						deleteMap.put(wKey, accesstime);
-        						}
-        					}
-        					block.markDirty(Meta.META_SIZE+item.getKey().length+item.getValue().length);
-        					Pointer oldPointer = map.get(wKey);
-        					if(oldPointer != null) {
-        						if(accesstime > oldPointer.getLastAccessTime()) {
-        							map.remove(wKey);
-        							oldPointer.getBlock().markDirty(Meta.META_SIZE+oldPointer.getItemSize());
-        						}
-        					}
-        					
-        				}else {
-        					Long accesstime = deleteMap.get(wKey);
-        					Pointer newPointer = new Pointer(block,meta.getOffSet(),item.getKey().length,item.getValue().length,meta.getTtl(),meta.getLastAccessTime());
-        					if(accesstime == null) {
-        						Pointer oldPointer = map.get(wKey);
-        						if(oldPointer==null) {
-        							map.put(wKey, newPointer);
-        						}else {
-        							if(oldPointer.getLastAccessTime()<=newPointer.getLastAccessTime()) {
-        								map.put(wKey, newPointer);
-        								oldPointer.getBlock().markDirty(Meta.META_SIZE+oldPointer.getItemSize());
-        							}else {
-        								newPointer.getBlock().markDirty(Meta.META_SIZE+newPointer.getItemSize());
-        							}
-        						}
-        					}else {
-        						if(accesstime <= newPointer.getLastAccessTime()) {
-        							map.put(wKey, newPointer);
-        						}else {
-        							newPointer.getBlock().markDirty(Meta.META_SIZE+newPointer.getItemSize());
-        						}
-        					}
-        				}        				
-        			}else {
-        				block.markDirty(capacityPerBlock-usedSize);
-        				break;
+        	List<IBlock> blocks = new ArrayList<IBlock>(usedBlocks);
+        	int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), blocks.size()));
+        	ExecutorService scanners = Executors.newFixedThreadPool(threads);
+        	try {
+        		List<Future<BlockScan>> scans = new ArrayList<Future<BlockScan>>();
+        		int submitted = 0;
+        		for (int i = 0; i < blocks.size(); i++) {
+        			while (submitted < blocks.size() && submitted < i + 2 * threads) {
+        				scans.add(scanners.submit(new BlockScan(blocks.get(submitted), true)));
+        				submitted++;
+        			}
+        			BlockScan scan = getScan(scans.get(i));
+        			scans.set(i, null);
+        			
+        			IBlock block = scan.getBlock();
+        			int usedSize = 0;
+        			for (int j = 0; j < scan.getCount(); j++) {
+        				Meta meta = scan.getMeta(j);
+        				usedSize += loadItem(map, deleteMap, block, meta, scan.getKey(j));
+        				block.extendExpireTime(meta.getLastAccessTime(), meta.getTtl());
+        			}
+        			if (usedSize == 0) {
+        				usedBlocks.remove(block);
+        				freeBlocks.offer(block);
+        				continue;
+        			}
+        			// the rest of a recovered block is never appended to
+        			block.markDirty(capacityPerBlock - usedSize);
+        			if (scan.getEndOffset() > scan.getHintEndOffset()) {
+        				hintWriter.submit(new HintTask(block));
         			}
-        			item = block.readItem(meta.getOffSet()+meta.getKeySize()+meta.getValueSize()+Meta.META_SIZE);
         		}
+        	} finally {
+        		scanners.shutdownNow();
         	}
         }
 	}
 	
-	private IBlock createNewBlock(int index) throws IOException {
-		if(storageMode != StorageMode.PureFile) {
-			if(allowedOffHeapModeBlockCount<0) {
-				return new StorageBlock(this.dir, index, this.capacityPerBlock, StorageMode.PureFile);
+	private static BlockScan getScan(Future<BlockScan> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading blocks", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Loads one item into the map, the newest item of a key wins and a delete item removes older ones.
+	 * 
+	 * @return the size of the item
+	 */
+	private int loadItem(IIndex map, Map<WrapperKey, Long> deleteMap, IBlock block, Meta meta, byte[] key) throws IOException {
+		int itemSize = meta.getKeySize() + meta.getValueSize() + Meta.META_SIZE;
+		WrapperKey wKey = new WrapperKey(key);
+		if(meta.getTtl() == Meta.TTL_DELETE) {
+			//collect all delete meta 
+			Long accesstime = deleteMap.get(wKey);
+			if(accesstime == null) {
+				accesstime = meta.getLastAccessTime();
+				deleteMap.put(wKey, accesstime);
+				
+			}else {
+				if(accesstime <= meta.getLastAccessTime()) {
+					accesstime = meta.getLastAccessTime();
+					deleteMap.put(wKey, accesstime);
+				}
+			}
+			block.markDirty(itemSize);
+			Pointer oldPointer = map.get(wKey);
+			if(oldPointer != null) {
+				if(accesstime > oldPointer.getLastAccessTime()) {
+					map.remove(wKey);
+					oldPointer.getBlock().markDirty(Meta.META_SIZE+oldPointer.getItemSize());
+				}
+			}
+			
+		}else {
+			Long accesstime = deleteMap.get(wKey);
+			Pointer newPointer = new Pointer(block,meta.getOffSet(),meta.getKeySize(),meta.getValueSize(),meta.getTtl(),meta.getLastAccessTime());
+			if(accesstime == null) {
+				Pointer oldPointer = map.get(wKey);
+				if(oldPointer==null) {
+					map.put(wKey, newPointer);
+				}else {
+					if(oldPointer.getLastAccessTime()<=newPointer.getLastAccessTime()) {
+						map.put(wKey, newPointer);
+						oldPointer.getBlock().markDirty(Meta.META_SIZE+oldPointer.getItemSize());
+					}else {
+						newPointer.getBlock().markDirty(Meta.META_SIZE+newPointer.getItemSize());
+					}
+				}
+			}else {
+				if(accesstime <= newPointer.getLastAccessTime()) {
+					map.put(wKey, newPointer);
+				}else {
+					newPointer.getBlock().markDirty(Meta.META_SIZE+newPointer.getItemSize());
+				}
+			}
+		}
+		return itemSize;
+	}
+	
+	/**
+	 * Creates a block unless the bound is reached, the index is reserved first so concurrent
+	 * callers never create more blocks than the bound.
+	 * 
+	 * @return the block, null if the bound is reached
+	 */
+	private IBlock createBoundedBlock() throws IOException {
+		int n;
+		while ((n = blockCount.get()) < maxBlockCount) {
+			if (blockCount.compareAndSet(n, n + 1)) {
+				return createNewBlock(n);
 			}
-			allowedOffHeapModeBlockCount--;
 		}
-		return new StorageBlock(this.dir, index, this.capacityPerBlock, storageMode);
+		return null;
+	}
+
+	private synchronized IBlock createNewBlock(int index) throws IOException {
+		IBlock block;
+		if(storageMode != StorageMode.PureFile && allowedOffHeapModeBlockCount<0) {
+			block = new StorageBlock(this.dir, index, this.capacityPerBlock, StorageMode.PureFile, writeBufferSize);
+		} else {
+			if(storageMode != StorageMode.PureFile) {
+				allowedOffHeapModeBlockCount--;
+			}
+			block = new StorageBlock(this.dir, index, this.capacityPerBlock, storageMode, writeBufferSize);
+		}
+		registerBlock(block);
+		return block;
 	}
 
 
 	public void close() throws IOException {
+		blockPreparer.shutdown();
+		hintWriter.shutdown();
+		try {
+			blockPreparer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			hintWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// checkpoint whatever has not been checkpointed yet, so the next start only loads hints
+		for(IBlock usedBlock : usedBlocks) {
+			if (usedBlock.getFile() != null && !HintFile.of(usedBlock.getFile()).exists()) {
+				usedBlock.writeHint();
+			}
+		}
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			IBlock activeBlock = activeBlocks.get(i);
+			if (activeBlock != null && activeBlock.getUsed() > 0) {
+				activeBlock.writeHint();
+			}
+		}
+		if (durability != Durability.None) {
+			sync();
+		}
 		for(IBlock usedBlock : usedBlocks) {
 			usedBlock.close();
 		}
@@ -227,7 +494,16 @@ public class StorageManager {
 			freeBlock.close();
 		}
         freeBlocks.clear();
-		activeBlock.close();
+		for(IBlock standbyBlock : standbyBlocks) {
+			standbyBlock.close();
+		}
+		standbyBlocks.clear();
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			IBlock activeBlock = activeBlocks.get(i);
+			if (activeBlock != null) {
+				activeBlock.close();
+			}
+		}
 	}
 	
 	public void clean() {
@@ -254,24 +530,57 @@ public class StorageManager {
      * @throws IOException
      */
 	public Pointer store(byte[] key, byte[] value, long ttl) throws IOException {
-		Pointer pointer = activeBlock.store(key, value, ttl);
+		return store(key, value, ttl, false);
+	}
+
+    /**
+     * Store the value
+     * @param key the key
+     * @param value the data
+     * @param ttl time-to-live
+     * @param bounded whether the capacity bound applies
+     * @return a pointer, null if bounded and a block is needed beyond the bound
+     * @throws IOException
+     */
+	public Pointer store(byte[] key, byte[] value, long ttl, boolean bounded) throws IOException {
+		Pointer pointer = storeItem(key, value, ttl, bounded);
+		if (pointer == null) {
+			return null;
+		}
+		if (durability == Durability.SyncOnPut) {
+			pointer.getBlock().sync();
+		} else if (durability == Durability.Periodic && syncBytes > 0) {
+			if (unsyncedBytes.addAndGet(Meta.META_SIZE + pointer.getItemSize()) >= syncBytes) {
+				unsyncedBytes.set(0);
+				sync();
+			}
+		}
+		return pointer;
+	}
+	
+	private Pointer storeItem(byte[] key, byte[] value, long ttl, boolean bounded) throws IOException {
+		int slot = getTtlClass(ttl) * stripes + ((int) Thread.currentThread().getId() & (stripes - 1));
+		IBlock activeBlock = activeBlocks.get(slot);
+		Pointer pointer = activeBlock != null ? activeBlock.store(key, value, ttl) : null;
 		if (pointer != null) {// success
 			return pointer; 
 		}else { // overflow
+			// only the writers of the same stripe wait
+			Lock activeBlockChangeLock = activeBlockChangeLocks[slot];
 			activeBlockChangeLock.lock(); 
 			try {
 				// other thread may have changed the active block
-				pointer = activeBlock.store(key,value,ttl);
+				activeBlock = activeBlocks.get(slot);
+				pointer = activeBlock != null ? activeBlock.store(key, value, ttl) : null;
 				if (pointer != null) {// success
 					return pointer; 
 				} else { // still overflow
-					IBlock freeBlock = this.freeBlocks.poll();
-					if (freeBlock == null) { // create a new one
-						freeBlock = createNewBlock(this.blockCount.getAndIncrement());
+					IBlock freeBlock = takeFreeBlock(bounded);
+					if (freeBlock == null) {
+						return null;
 					}
 					pointer = freeBlock.store(key,value,ttl);
-					this.usedBlocks.add(this.activeBlock);
-					this.activeBlock = freeBlock;
+					activate(slot, activeBlock, freeBlock);
 
 					return pointer;
 				}
@@ -282,6 +591,148 @@ public class StorageManager {
 		}
 	}
 
+    /**
+     * Store the values next to each other in a single block, so they are written at once.
+     * @param keys the keys
+     * @param values the data, one per key
+     * @param ttl time-to-live of all
+     * @param bounded whether the capacity bound applies
+     * @return the pointers, one per key, null if bounded and a block is needed beyond the bound
+     * @throws IOException
+     * @throws IllegalArgumentException if the values do not fit in a block
+     */
+	public Pointer[] storeAll(byte[][] keys, byte[][] values, long ttl, boolean bounded) throws IOException {
+		long length = 0;
+		for (int i = 0; i < keys.length; i++) {
+			length += Meta.META_SIZE + keys[i].length + values[i].length;
+		}
+		if (length > capacityPerBlock) {
+			throw new IllegalArgumentException("batch of " + length + " bytes is larger than a block");
+		}
+		Pointer[] pointers = storeItems(keys, values, ttl, bounded);
+		if (pointers == null) {
+			return null;
+		}
+		if (durability == Durability.SyncOnPut) {
+			pointers[0].getBlock().sync();
+		} else if (durability == Durability.Periodic && syncBytes > 0) {
+			long size = 0;
+			for (Pointer pointer : pointers) {
+				size += Meta.META_SIZE + pointer.getItemSize();
+			}
+			if (unsyncedBytes.addAndGet(size) >= syncBytes) {
+				unsyncedBytes.set(0);
+				sync();
+			}
+		}
+		return pointers;
+	}
+
+	private Pointer[] storeItems(byte[][] keys, byte[][] values, long ttl, boolean bounded) throws IOException {
+		int slot = getTtlClass(ttl) * stripes + ((int) Thread.currentThread().getId() & (stripes - 1));
+		IBlock activeBlock = activeBlocks.get(slot);
+		Pointer[] pointers = activeBlock != null ? activeBlock.storeAll(keys, values, ttl) : null;
+		if (pointers != null) {
+			return pointers;
+		}
+		Lock activeBlockChangeLock = activeBlockChangeLocks[slot];
+		activeBlockChangeLock.lock();
+		try {
+			activeBlock = activeBlocks.get(slot);
+			pointers = activeBlock != null ? activeBlock.storeAll(keys, values, ttl) : null;
+			if (pointers != null) {
+				return pointers;
+			}
+			IBlock freeBlock = takeFreeBlock(bounded);
+			if (freeBlock == null) {
+				return null;
+			}
+			pointers = freeBlock.storeAll(keys, values, ttl);
+			activate(slot, activeBlock, freeBlock);
+			return pointers;
+		} finally {
+			activeBlockChangeLock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a block to replace a full active block, prepared in the background if possible.
+	 * 
+	 * @return the block, null if bounded and a block is needed beyond the bound
+	 */
+	private IBlock takeFreeBlock(boolean bounded) throws IOException {
+		IBlock freeBlock = this.standbyBlocks.poll();
+		if (freeBlock == null) { // not prepared in time
+			freeBlock = this.freeBlocks.poll();
+		}
+		if (freeBlock == null) { // create a new one
+			if (bounded) {
+				return createBoundedBlock();
+			}
+			freeBlock = createNewBlock(this.blockCount.getAndIncrement());
+		}
+		return freeBlock;
+	}
+
+	/**
+	 * Makes a block the active one of a slot, sealing the block it replaces.
+	 */
+	private void activate(int slot, IBlock activeBlock, IBlock freeBlock) {
+		if (activeBlock != null) {
+			this.usedBlocks.add(activeBlock);
+			hintWriter.submit(new HintTask(activeBlock));
+		}
+		activeBlocks.set(slot, freeBlock);
+		prepareStandbyBlocks();
+	}
+	
+	/**
+	 * Has the standby blocks topped up in the background, unless already pending.
+	 */
+	private void prepareStandbyBlocks() {
+		if (standbyBlocks.size() < STANDBY_BLOCKS && preparing.compareAndSet(false, true)) {
+			try {
+				blockPreparer.submit(new PrepareTask());
+			} catch (RejectedExecutionException e) {
+				// closing
+				preparing.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Items with close time to idle share blocks, so their blocks expire as a whole.
+	 */
+	private static int getTtlClass(long ttl) {
+		if (ttl <= 0) {
+			// never expiring and delete items
+			return 0;
+		}
+		for (int i = 0; i < TTL_CLASS_LIMITS.length; i++) {
+			if (ttl <= TTL_CLASS_LIMITS[i]) {
+				return i + 1;
+			}
+		}
+		return TTL_CLASS_LIMITS.length + 1;
+	}
+
+	/**
+	 * Forces the items stored so far in all blocks to the disk.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		for(IBlock usedBlock : usedBlocks) {
+			usedBlock.sync();
+		}
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			IBlock activeBlock = activeBlocks.get(i);
+			if (activeBlock != null) {
+				activeBlock.sync();
+			}
+		}
+	}
+	
 	public byte[] retrieve(Pointer pointer) throws IOException {		
 		return pointer.getBlock().retrieve(pointer);
 	}
@@ -300,7 +751,13 @@ public class StorageManager {
 		for(IBlock block : usedBlocks) {
 			usedStorage += block.getUsed();
 		}
-		return usedStorage + activeBlock.getUsed();
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			IBlock activeBlock = activeBlocks.get(i);
+			if (activeBlock != null) {
+				usedStorage += activeBlock.getUsed();
+			}
+		}
+		return usedStorage;
 	}
 
     /**
@@ -321,7 +778,13 @@ public class StorageManager {
 		for(IBlock block : usedBlocks) {
 			dirtyStorage += block.getDirty();
 		}
-		return dirtyStorage + activeBlock.getDirty();
+		for (int i = 0; i < activeBlocks.length(); i++) {
+			IBlock activeBlock = activeBlocks.get(i);
+			if (activeBlock != null) {
+				dirtyStorage += activeBlock.getDirty();
+			}
+		}
+		return dirtyStorage;
 	}
 
     /**
@@ -345,7 +808,7 @@ public class StorageManager {
 	}
 	
 	public int getFreeBlockCount() {
-		return freeBlocks.size();
+		return freeBlocks.size() + standbyBlocks.size();
 	}
 	
 	public int getUsedBlockCount() {
@@ -356,7 +819,13 @@ public class StorageManager {
         Set<IBlock> allBlocks = new HashSet<IBlock>();
         allBlocks.addAll(usedBlocks);
         allBlocks.addAll(freeBlocks);
-        allBlocks.add(activeBlock);
+        allBlocks.addAll(standbyBlocks);
+        for (int i = 0; i < activeBlocks.length(); i++) {
+            IBlock activeBlock = activeBlocks.get(i);
+            if (activeBlock != null) {
+                allBlocks.add(activeBlock);
+            }
+        }
         return allBlocks;
     }
     
@@ -372,7 +841,7 @@ public class StorageManager {
     
     public Set<IBlock> getForeverBlocks(){
 		Set<IBlock> set = new HashSet<IBlock>();
-		if(StorageMode.PureFile == activeBlock.getStorageMode()){
+		if(StorageMode.PureFile == activeBlocks.get(0).getStorageMode()){
 			for(IBlock block : usedBlocks) {
 				if(StorageMode.PureFile != block.getStorageMode()){
 					if(dirtyRatioThreshold < block.getForeverRatio()) {
@@ -384,6 +853,42 @@ public class StorageManager {
 		return set;
     }
 
+    /**
+     * Get the sealed blocks whose items have all expired before the specified time
+     * @param time the time in milliseconds
+     * @return the expired blocks
+     */
+    public Set<IBlock> getExpiredBlocks(long time){
+		Set<IBlock> set = new HashSet<IBlock>();
+		for(IBlock block : usedBlocks) {
+			if(block.getUsed() > 0 && block.getExpireTime() < time) {
+				set.add(block);
+			}
+		}
+		return set;
+    }
+
+    /**
+     * Whether the capacity bound has been reached, new blocks are made by eviction only
+     * @return true if at capacity
+     */
+    public boolean isFull() {
+    	return blockCount.get() >= maxBlockCount && getFreeBlockCount() == 0;
+    }
+
+    /**
+     * Get the block sealed the longest ago which can be freed at once, blocks retained are skipped
+     * @return the block, or null if no such block is sealed
+     */
+    public IBlock getOldestBlock() {
+    	for (IBlock block : usedBlocks) {
+    		if (!block.isRetained()) {
+    			return block;
+    		}
+    	}
+    	return null;
+    }
+
     /**
      * Get blocks amount
      * @return the amount
@@ -392,4 +897,55 @@ public class StorageManager {
 		return getAllBlocks().size();
 	}
 
+	/**
+	 * Takes free blocks, creating them if none, and prepares them as standby blocks.
+	 */
+	private class PrepareTask implements Runnable {
+
+		@Override
+		public void run() {
+			preparing.set(false);
+			try {
+				while (standbyBlocks.size() < STANDBY_BLOCKS) {
+					IBlock block = freeBlocks.poll();
+					if (block == null) {
+						block = createBoundedBlock();
+						if (block == null) {
+							// puts evict to make room
+							return;
+						}
+					}
+					try {
+						block.prepare();
+					} finally {
+						standbyBlocks.offer(block);
+					}
+				}
+			} catch (IOException e) {
+				// the next rollover takes or creates a block itself
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered items and the hint file of a sealed block.
+	 */
+	private static class HintTask implements Runnable {
+		
+		private final IBlock block;
+		
+		public HintTask(IBlock block) {
+			this.block = block;
+		}
+
+		@Override
+		public void run() {
+			try {
+				block.flush();
+				block.writeHint();
+			} catch (IOException e) {
+				// no hint, the block will be replayed on recovery
+			}
+		}
+	}
 }
@@ -0,0 +1,172 @@
+package com.ctriposs.quickcache.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A hierarchical timing wheel, handing out the elements whose deadline has passed.
+ *
+ * Time is cut into ticks of a fixed duration. The lowest wheel has a slot per tick for the next
+ * {@link #SLOTS} ticks, each higher wheel has a slot per turn of the wheel below. An element is put into
+ * the slot of the lowest wheel covering its deadline, and is cascaded down to a lower wheel when the
+ * slot of its higher wheel comes round, so advancing only visits the elements due or cascaded.
+ * Deadlines beyond the highest wheel are cascaded again each turn until within reach.
+ */
+public class TimingWheel<E> {
+
+	private static final int SLOT_BITS = 6;
+
+	/** The number of slots of a wheel. */
+	public static final int SLOTS = 1 << SLOT_BITS;
+
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	/** The number of wheels, the highest covering 64^4 ticks. */
+	public static final int WHEELS = 4;
+
+	private final long tickDuration;
+
+	private final List<Queue<Node<E>>> slots;
+
+	/** Elements found due when added, handed out on the next advance. */
+	private final Queue<Node<E>> overdue = new ConcurrentLinkedQueue<Node<E>>();
+
+	/** Adding shares the lock, advancing takes it exclusively. */
+	private final Lock addLock;
+	private final Lock advanceLock;
+
+	/** The last tick advanced to, changed under the advance lock only. */
+	private long currentTick;
+
+	/**
+	 * @param tickDuration the duration of a tick in milliseconds
+	 * @param now the current time in milliseconds
+	 */
+	public TimingWheel(long tickDuration, long now) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must be positive");
+		}
+		this.tickDuration = tickDuration;
+		this.currentTick = now / tickDuration;
+		this.slots = new ArrayList<Queue<Node<E>>>(WHEELS * SLOTS);
+		for (int i = 0; i < WHEELS * SLOTS; i++) {
+			slots.add(new ConcurrentLinkedQueue<Node<E>>());
+		}
+		ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		this.addLock = lock.readLock();
+		this.advanceLock = lock.writeLock();
+	}
+
+	/**
+	 * Adds an element, due on the first advance at or after the tick following the deadline.
+	 *
+	 * @param element the element
+	 * @param deadline the last time in milliseconds the element is not due yet
+	 */
+	public void add(E element, long deadline) {
+		Node<E> node = new Node<E>(element, deadline / tickDuration + 1);
+		addLock.lock();
+		try {
+			place(node);
+		} finally {
+			addLock.unlock();
+		}
+	}
+
+	/**
+	 * Advances the wheels to the specified time.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return the elements due, in no particular order
+	 */
+	public List<E> advance(long now) {
+		List<E> due = new ArrayList<E>();
+		long target = now / tickDuration;
+		advanceLock.lock();
+		try {
+			while (currentTick < target) {
+				currentTick++;
+				cascade(due);
+				drain(slots.get((int) (currentTick & SLOT_MASK)), due);
+			}
+		} finally {
+			advanceLock.unlock();
+		}
+		Node<E> node;
+		while ((node = overdue.poll()) != null) {
+			due.add(node.element);
+		}
+		return due;
+	}
+
+	/**
+	 * Gets the time before which all deadlines are handed out once advanced to the specified time.
+	 *
+	 * @param now the time in milliseconds
+	 * @return the time in milliseconds
+	 */
+	public long dueBefore(long now) {
+		return now / tickDuration * tickDuration;
+	}
+
+	/**
+	 * Cascades the slots of the higher wheels coming round at the current tick.
+	 */
+	private void cascade(List<E> due) {
+		for (int wheel = 1; wheel < WHEELS; wheel++) {
+			if ((currentTick & ((1L << (wheel * SLOT_BITS)) - 1)) != 0) {
+				break;
+			}
+			int index = (int) ((currentTick >>> (wheel * SLOT_BITS)) & SLOT_MASK);
+			Queue<Node<E>> slot = slots.get(wheel * SLOTS + index);
+			Node<E> node;
+			while ((node = slot.poll()) != null) {
+				if (node.tick <= currentTick) {
+					due.add(node.element);
+				} else {
+					place(node);
+				}
+			}
+		}
+	}
+
+	private void drain(Queue<Node<E>> slot, List<E> due) {
+		Node<E> node;
+		while ((node = slot.poll()) != null) {
+			due.add(node.element);
+		}
+	}
+
+	private void place(Node<E> node) {
+		long delta = node.tick - currentTick;
+		if (delta <= 0) {
+			overdue.offer(node);
+			return;
+		}
+		int wheel = 0;
+		while (wheel < WHEELS - 1 && delta >= 1L << ((wheel + 1) * SLOT_BITS)) {
+			wheel++;
+		}
+		// beyond the highest wheel, parked in its furthest slot and cascaded again when reached
+		long tick = Math.min(node.tick, currentTick + (1L << (WHEELS * SLOT_BITS)) - 1);
+		int index = (int) ((tick >>> (wheel * SLOT_BITS)) & SLOT_MASK);
+		slots.get(wheel * SLOTS + index).offer(node);
+	}
+
+	private static final class Node<E> {
+
+		private final E element;
+
+		/** The tick the element is due on. */
+		private final long tick;
+
+		Node(E element, long tick) {
+			this.element = element;
+			this.tick = tick;
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package com.ctriposs.quickcache.storage;
 
 import java.io.Serializable;
-import java.util.Arrays;
 
 import com.ctriposs.quickcache.utils.ByteUtil;
 import com.ctriposs.quickcache.utils.HashUtil;
@@ -10,11 +9,11 @@ public class WrapperKey implements Serializable,Comparable<WrapperKey> {
 
 	private static final long serialVersionUID = 1L;
 	private byte[] key;
-	private int hashCode;
+	private long hash;
 
 	public WrapperKey(byte[] key) {
 		this.key = key;
-		this.hashCode = HashUtil.JSHash(key);
+		this.hash = HashUtil.xxHash64(key);
 	}
 	
 	@Override
@@ -22,7 +21,7 @@ public class WrapperKey implements Serializable,Comparable<WrapperKey> {
 
 		if (obj instanceof WrapperKey) {
 			WrapperKey other = (WrapperKey) obj;
-			return Arrays.equals(key, other.key);
+			return hash == other.hash && ByteUtil.equals(key, other.key);
 		}
 		return false;
 	}
@@ -31,9 +30,16 @@ public class WrapperKey implements Serializable,Comparable<WrapperKey> {
 		return key;
 	}
 
+	/**
+	 * Gets the 64-bit hash of the key, from which the hash code is folded.
+	 */
+	public long getHash() {
+		return hash;
+	}
+
 	@Override
 	public int hashCode() {
-		return hashCode;
+		return (int) (hash ^ (hash >>> 32));
 	}
 
 
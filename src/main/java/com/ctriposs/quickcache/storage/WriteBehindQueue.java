@@ -0,0 +1,233 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The puts and deletes accepted but not yet applied to the storage, in the order they were made.
+ *
+ * The queue is bounded by permits, a writer waits for one when full. The latest write of each key is
+ * indexed, so reads see it before it is applied. A single appender polls the writes in runs of a kind
+ * and reports them applied, which lets the flush barriers waiting for them through. Polling and clearing
+ * are the appender's and the clearer's to keep apart, the head staying put until taken.
+ */
+public class WriteBehindQueue {
+
+	private final Queue<PendingWrite> queue = new ConcurrentLinkedQueue<PendingWrite>();
+
+	/** The latest pending write of each key. */
+	private final ConcurrentMap<WrapperKey, PendingWrite> latest = new ConcurrentHashMap<WrapperKey, PendingWrite>();
+
+	private final Semaphore permits;
+
+	/** The number of writes queued so far. */
+	private final AtomicLong queued = new AtomicLong(0);
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition appliedChanged = lock.newCondition();
+
+	/** The number of writes applied so far, guarded by the lock. */
+	private long applied;
+
+	/** Whether the appender is waiting for writes, so writers signal it. */
+	private volatile boolean appenderWaiting;
+
+	/**
+	 * @param capacity the number of writes queued at most
+	 */
+	public WriteBehindQueue(int capacity) {
+		this.permits = new Semaphore(capacity);
+	}
+
+	/**
+	 * Queues a write, waiting while the queue is full.
+	 *
+	 * @param key the key
+	 * @param value the value, null to delete
+	 * @param ttl the ttl of the value
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void offer(WrapperKey key, byte[] value, long ttl) throws InterruptedIOException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while the write-behind queue is full");
+		}
+		PendingWrite write = new PendingWrite(key, value, ttl);
+		// counted before queued, so a flush never misses a write queued before it
+		queued.incrementAndGet();
+		latest.put(key, write);
+		queue.offer(write);
+		if (appenderWaiting) {
+			lock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the latest pending write of a key.
+	 *
+	 * @param key the key
+	 * @return the write, null if none is pending
+	 */
+	public PendingWrite get(WrapperKey key) {
+		return latest.get(key);
+	}
+
+	/**
+	 * Waits for a write to be queued, unless one is already.
+	 *
+	 * @param timeout the time to wait, unit : millisecond
+	 * @return false if none came in time
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		if (!queue.isEmpty()) {
+			return true;
+		}
+		lock.lock();
+		try {
+			appenderWaiting = true;
+			if (queue.isEmpty()) {
+				notEmpty.await(timeout, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			appenderWaiting = false;
+			lock.unlock();
+		}
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * Polls the next run of writes of a kind, puts of the same ttl or deletes. The caller keeps a
+	 * {@link #clear()} from running until the writes polled are applied.
+	 *
+	 * @param max the number of writes polled at most
+	 * @return the writes, empty if none is queued
+	 */
+	public List<PendingWrite> poll(int max) {
+		List<PendingWrite> writes = new ArrayList<PendingWrite>();
+		PendingWrite first = queue.peek();
+		PendingWrite write;
+		while (first != null && writes.size() < max && (write = queue.peek()) != null
+				&& write.isDelete() == first.isDelete() && write.ttl == first.ttl) {
+			writes.add(queue.poll());
+		}
+		return writes;
+	}
+
+	/**
+	 * Reports writes polled as applied to the storage, no longer to be read from the queue.
+	 *
+	 * @param writes the writes
+	 */
+	public void applied(List<PendingWrite> writes) {
+		if (writes.isEmpty()) {
+			return;
+		}
+		for (PendingWrite write : writes) {
+			latest.remove(write.key, write);
+		}
+		permits.release(writes.size());
+		lock.lock();
+		try {
+			applied += writes.size();
+			appliedChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all the writes queued before the call have been applied. The queue being polled in order,
+	 * they are once as many writes have been applied as were queued.
+	 *
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void flush() throws InterruptedIOException {
+		long target = queued.get();
+		lock.lock();
+		try {
+			while (applied < target) {
+				appliedChanged.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while flushing the write-behind queue");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the writes not yet polled.
+	 */
+	public void clear() {
+		List<PendingWrite> dropped = new ArrayList<PendingWrite>();
+		PendingWrite write;
+		while ((write = queue.poll()) != null) {
+			dropped.add(write);
+		}
+		applied(dropped);
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * A put or a delete waiting to be applied.
+	 */
+	public static final class PendingWrite {
+
+		private final WrapperKey key;
+		private final byte[] value;
+		private final long ttl;
+
+		PendingWrite(WrapperKey key, byte[] value, long ttl) {
+			this.key = key;
+			this.value = value;
+			this.ttl = ttl;
+		}
+
+		public WrapperKey getKey() {
+			return key;
+		}
+
+		/**
+		 * @return the value, null for a delete
+		 */
+		public byte[] getValue() {
+			return value;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+		public boolean isDelete() {
+			return value == null;
+		}
+	}
+}
@@ -0,0 +1,393 @@
+package com.ctriposs.quickcache.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import sun.misc.Unsafe;
+
+import com.ctriposs.quickcache.utils.UnsafeUtil;
+
+/**
+ * The write-back buffer of a file block, turning many small item writes into a few large sequential ones.
+ *
+ * The file is divided into windows of equal size and a ring of {@link #WINDOWS} direct buffers holds the
+ * most recent ones. Writers copy into the buffer of the window they have reserved space in, concurrently
+ * and in any order, and the writer completing a window writes it to the file in one call. A window still
+ * incomplete when its ring slot is needed for a newer window is written as is, writers coming late to it
+ * write straight to the file once it has been written. Readers are served from the ring when the range
+ * has not been written to the file yet.
+ */
+public class WriteBuffer {
+
+	private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+	private static final long BYTE_ARRAY_OFFSET = UnsafeUtil.BYTE_ARRAY_OFFSET;
+
+	/** The number of windows in the ring. */
+	public static final int WINDOWS = 4;
+
+	/** Idle window buffers shared by all blocks, always zeroed. */
+	private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private final FileChannel fileChannel;
+
+	private final int windowSize;
+
+	private final Window[] ring = new Window[WINDOWS];
+
+	/**
+	 * @param fileChannel the file to write to
+	 * @param bufferSize the total size of the ring
+	 */
+	public WriteBuffer(FileChannel fileChannel, int bufferSize) {
+		this.fileChannel = fileChannel;
+		this.windowSize = Math.max(bufferSize / WINDOWS, 1);
+		for (int i = 0; i < WINDOWS; i++) {
+			ring[i] = new Window();
+		}
+	}
+
+	/**
+	 * Puts bytes to the specified location of the file.
+	 *
+	 * @param position the position in the file
+	 * @param source the source
+	 * @param offset the offset within the source
+	 * @param length the number of bytes
+	 * @throws IOException
+	 */
+	public void put(long position, byte[] source, int offset, int length) throws IOException {
+		while (length > 0) {
+			long windowIndex = position / windowSize;
+			int windowOffset = (int) (position % windowSize);
+			int n = Math.min(length, windowSize - windowOffset);
+			putWindow(windowIndex, windowOffset, source, offset, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void putWindow(long windowIndex, int windowOffset, byte[] source, int offset, int length) throws IOException {
+		Window window = ring[(int) (windowIndex % WINDOWS)];
+		while (true) {
+			boolean buffered = false;
+			boolean complete = false;
+			window.readLock.lock();
+			try {
+				if (window.index == windowIndex && !window.flushed) {
+					UNSAFE.copyMemory(source, BYTE_ARRAY_OFFSET + offset, null, window.address + windowOffset, length);
+					window.lowerDirtyFrom(windowOffset);
+					window.extendHighWater(windowOffset + length);
+					complete = window.filled.addAndGet(length) == windowSize;
+					buffered = true;
+				} else if (window.index >= windowIndex) {
+					// the window has been written already
+					break;
+				}
+			} finally {
+				window.readLock.unlock();
+			}
+			if (buffered) {
+				if (complete) {
+					flush(window, windowIndex);
+				}
+				return;
+			}
+			advance(window, windowIndex);
+		}
+		write(ByteBuffer.wrap(source, offset, length), windowIndex * windowSize + windowOffset);
+	}
+
+	/**
+	 * Moves a ring slot forward to a newer window, writing the window it held.
+	 */
+	private void advance(Window window, long windowIndex) throws IOException {
+		window.writeLock.lock();
+		try {
+			if (window.index < windowIndex) {
+				if (!window.flushed) {
+					flushWindow(window);
+				}
+				if (window.buffer == null) {
+					window.buffer = acquire();
+					window.address = UnsafeUtil.getAddress(window.buffer);
+				} else {
+					clean(window.buffer, window.highWater.get());
+				}
+				window.index = windowIndex;
+				window.filled.set(0);
+				window.highWater.set(0);
+				window.dirtyFrom.set(Integer.MAX_VALUE);
+				window.flushed = false;
+			}
+		} finally {
+			window.writeLock.unlock();
+		}
+	}
+
+	private void flush(Window window, long windowIndex) throws IOException {
+		window.writeLock.lock();
+		try {
+			if (window.index == windowIndex && !window.flushed) {
+				flushWindow(window);
+			}
+		} finally {
+			window.writeLock.unlock();
+		}
+	}
+
+	private void flushWindow(Window window) throws IOException {
+		int length = window.highWater.get();
+		if (length > 0) {
+			ByteBuffer buffer = window.buffer.duplicate();
+			buffer.position(0);
+			buffer.limit(length);
+			write(buffer, window.index * windowSize);
+		}
+		window.dirtyFrom.set(Integer.MAX_VALUE);
+		window.flushed = true;
+	}
+
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += fileChannel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Gets bytes from the specified location, from the ring for the windows not written to the file yet.
+	 *
+	 * @param position the position in the file
+	 * @param dest the destination
+	 * @param offset the offset within the destination
+	 * @param length the number of bytes
+	 * @throws IOException
+	 */
+	public void get(long position, byte[] dest, int offset, int length) throws IOException {
+		while (length > 0) {
+			long windowIndex = position / windowSize;
+			int windowOffset = (int) (position % windowSize);
+			int n = Math.min(length, windowSize - windowOffset);
+			Window window = ring[(int) (windowIndex % WINDOWS)];
+			boolean buffered = false;
+			window.readLock.lock();
+			try {
+				if (window.index == windowIndex && !window.flushed) {
+					UNSAFE.copyMemory(null, window.address + windowOffset, dest, BYTE_ARRAY_OFFSET + offset, n);
+					buffered = true;
+				}
+			} finally {
+				window.readLock.unlock();
+			}
+			if (!buffered) {
+				read(ByteBuffer.wrap(dest, offset, n), position);
+			}
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Gets bytes from the specified location into the remaining space of dest, from the ring for the
+	 * windows not written to the file yet.
+	 *
+	 * @param position the position in the file
+	 * @param dest the destination, its position is advanced by the bytes got
+	 * @throws IOException
+	 */
+	public void get(long position, ByteBuffer dest) throws IOException {
+		int limit = dest.limit();
+		try {
+			while (dest.position() < limit) {
+				long windowIndex = position / windowSize;
+				int windowOffset = (int) (position % windowSize);
+				int n = Math.min(limit - dest.position(), windowSize - windowOffset);
+				Window window = ring[(int) (windowIndex % WINDOWS)];
+				dest.limit(dest.position() + n);
+				boolean buffered = false;
+				window.readLock.lock();
+				try {
+					if (window.index == windowIndex && !window.flushed) {
+						ByteBuffer buffer = window.buffer.duplicate();
+						buffer.limit(windowOffset + n);
+						buffer.position(windowOffset);
+						dest.put(buffer);
+						buffered = true;
+					}
+				} finally {
+					window.readLock.unlock();
+				}
+				if (!buffered) {
+					read(dest, position);
+				}
+				position += n;
+			}
+		} finally {
+			dest.limit(limit);
+		}
+	}
+
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = fileChannel.read(buffer, position);
+			if (n < 0) {
+				// beyond the end of a truncated file
+				while (buffer.hasRemaining()) {
+					buffer.put((byte) 0);
+				}
+				break;
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * Writes all buffered windows to the file and gives their buffers back to the pool.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		for (Window window : ring) {
+			window.writeLock.lock();
+			try {
+				if (!window.flushed) {
+					flushWindow(window);
+				}
+				release(window);
+			} finally {
+				window.writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes copied into the ring since the last write of their window, keeping the windows buffered.
+	 *
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		for (Window window : ring) {
+			window.writeLock.lock();
+			try {
+				if (!window.flushed) {
+					int from = window.dirtyFrom.get();
+					int to = window.highWater.get();
+					if (from < to) {
+						ByteBuffer buffer = window.buffer.duplicate();
+						buffer.position(from);
+						buffer.limit(to);
+						write(buffer, window.index * windowSize + from);
+					}
+					window.dirtyFrom.set(Integer.MAX_VALUE);
+				}
+			} finally {
+				window.writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Drops the buffered windows without writing them, the file is written from offset 0 again afterwards.
+	 */
+	public void reset() {
+		for (Window window : ring) {
+			window.writeLock.lock();
+			try {
+				window.flushed = true;
+				release(window);
+				window.index = -1;
+			} finally {
+				window.writeLock.unlock();
+			}
+		}
+	}
+
+	private void release(Window window) {
+		if (window.buffer != null) {
+			clean(window.buffer, window.highWater.get());
+			POOL.offer(window.buffer);
+			window.buffer = null;
+			window.address = 0;
+		}
+		window.highWater.set(0);
+	}
+
+	private ByteBuffer acquire() {
+		ByteBuffer buffer;
+		while ((buffer = POOL.poll()) != null) {
+			if (buffer.capacity() == windowSize) {
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(windowSize);
+	}
+
+	private static void clean(ByteBuffer buffer, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			dup.putLong(i, 0L);
+		}
+		for (; i < length; i++) {
+			dup.put(i, (byte) 0);
+		}
+	}
+
+	private static final class Window {
+
+		private final Lock readLock;
+		private final Lock writeLock;
+
+		/** The bytes copied into the window. */
+		private final AtomicInteger filled = new AtomicInteger(0);
+
+		/** The end of the furthest copy into the window. */
+		private final AtomicInteger highWater = new AtomicInteger(0);
+
+		/** The start of the lowest copy into the window since it was last written. */
+		private final AtomicInteger dirtyFrom = new AtomicInteger(Integer.MAX_VALUE);
+
+		private ByteBuffer buffer;
+
+		/** The address of the buffer memory, copies go straight to it. */
+		private long address;
+
+		/** The index of the file window held, changed under the write lock only. */
+		private long index = -1;
+
+		/** Whether the window has been written to the file, changed under the write lock only. */
+		private boolean flushed = true;
+
+		Window() {
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			this.readLock = lock.readLock();
+			this.writeLock = lock.writeLock();
+		}
+
+		void extendHighWater(int end) {
+			int current;
+			while ((current = highWater.get()) < end) {
+				if (highWater.compareAndSet(current, end)) {
+					return;
+				}
+			}
+		}
+
+		void lowerDirtyFrom(int start) {
+			int current;
+			while ((current = dirtyFrom.get()) > start) {
+				if (dirtyFrom.compareAndSet(current, start)) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -38,6 +38,18 @@ public class ByteUtil {
 
 	}
 
+	public static void toBytes(int n, byte[] bytes, int offset) {
+		bytes[offset + 3] = (byte) (n & 0xff);
+		bytes[offset + 2] = (byte) (n >> 8 & 0xff);
+		bytes[offset + 1] = (byte) (n >> 16 & 0xff);
+		bytes[offset] = (byte) (n >> 24 & 0xff);
+	}
+
+	public static void toBytes(long n, byte[] bytes, int offset) {
+		toBytes((int) (n >> 32), bytes, offset);
+		toBytes((int) n, bytes, offset + 4);
+	}
+
 	public static byte[] toBytes(short n) {
 		byte[] bytes = new byte[2];
 		bytes[1] = (byte) (n & 0xff);
@@ -45,6 +57,70 @@ public class ByteUtil {
 		return bytes;
 	}
 
+	/**
+	 * Gets the number of bytes of the chars in UTF-8, an unpaired surrogate taking one.
+	 */
+	public static int utf8Length(CharSequence chars) {
+		int length = chars.length();
+		int size = 0;
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				size++;
+			} else if (c < 0x800) {
+				size += 2;
+			} else if (isSurrogatePair(chars, i)) {
+				size += 4;
+				i++;
+			} else if (isSurrogate(c)) {
+				size++;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Encodes the chars in UTF-8 at the offset, an unpaired surrogate as '?'.
+	 * 
+	 * @return the offset past the bytes written
+	 */
+	public static int toUtf8(CharSequence chars, byte[] bytes, int offset) {
+		int length = chars.length();
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				bytes[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[offset++] = (byte) (0xc0 | (c >> 6));
+				bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+			} else if (isSurrogatePair(chars, i)) {
+				int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+				bytes[offset++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (isSurrogate(c)) {
+				bytes[offset++] = (byte) '?';
+			} else {
+				bytes[offset++] = (byte) (0xe0 | (c >> 12));
+				bytes[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[offset++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return offset;
+	}
+
+	private static boolean isSurrogatePair(CharSequence chars, int index) {
+		return Character.isHighSurrogate(chars.charAt(index)) && index + 1 < chars.length()
+				&& Character.isLowSurrogate(chars.charAt(index + 1));
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
     public static byte[] ToBytes(Object o) throws IOException {
         if (o instanceof String) {
             return ((String) o).getBytes();
@@ -79,6 +155,40 @@ public class ByteUtil {
 				| (((long) bytes[6] & 0xff) << 8) | (((long) bytes[7] & 0xff) << 0));
 	}
 
+	public static int ToInt(byte[] bytes, int offset) {
+		return bytes[offset + 3] & 0xff | (bytes[offset + 2] & 0xff) << 8
+				| (bytes[offset + 1] & 0xff) << 16 | (bytes[offset] & 0xff) << 24;
+	}
+
+	public static long ToLong(byte[] bytes, int offset) {
+		return ((long) ToInt(bytes, offset) << 32) | (ToInt(bytes, offset + 4) & 0xffffffffL);
+	}
+
+    /**
+     * Compares the bytes for equality 8 at a time.
+     */
+    public static boolean equals(byte[] left, byte[] right) {
+        if (left == right) {
+            return true;
+        }
+        if (left == null || right == null || left.length != right.length) {
+            return false;
+        }
+        int i = 0;
+        for (int limit = left.length - 8; i <= limit; i += 8) {
+            if (UnsafeUtil.UNSAFE.getLong(left, UnsafeUtil.BYTE_ARRAY_OFFSET + i)
+                    != UnsafeUtil.UNSAFE.getLong(right, UnsafeUtil.BYTE_ARRAY_OFFSET + i)) {
+                return false;
+            }
+        }
+        for (; i < left.length; i++) {
+            if (left[i] != right[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static int compare(byte[] left, byte[] right) {
         for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
             int a = (left[i] & 0xff);
@@ -1,7 +1,21 @@
 package com.ctriposs.quickcache.utils;
 
+import java.nio.ByteOrder;
+
+import sun.misc.Unsafe;
+
 public class HashUtil {
 
+	private static final Unsafe UNSAFE = UnsafeUtil.UNSAFE;
+
+	private static final boolean NATIVE_LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	private static final long PRIME64_1 = 0x9e3779b185ebca87L;
+	private static final long PRIME64_2 = 0xc2b2ae3d27d4eb4fL;
+	private static final long PRIME64_3 = 0x165667b19e3779f9L;
+	private static final long PRIME64_4 = 0x85ebca77c2b2ae63L;
+	private static final long PRIME64_5 = 0x27d4eb2f165667c5L;
+
     public static int JSHash(byte[] bytes) {
     
         int hash = 1315423911;
@@ -24,4 +38,81 @@ public class HashUtil {
         return hash;
     }
 
+    /**
+     * The xxHash64 of the bytes with seed 0, reading 8 bytes at a time.
+     */
+    public static long xxHash64(byte[] bytes) {
+        int length = bytes.length;
+        int offset = 0;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = PRIME64_1 + PRIME64_2;
+            long v2 = PRIME64_2;
+            long v3 = 0;
+            long v4 = -PRIME64_1;
+            int limit = length - 32;
+            do {
+                v1 = round(v1, getLong(bytes, offset));
+                v2 = round(v2, getLong(bytes, offset + 8));
+                v3 = round(v3, getLong(bytes, offset + 16));
+                v4 = round(v4, getLong(bytes, offset + 24));
+                offset += 32;
+            } while (offset <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += length;
+
+        while (offset + 8 <= length) {
+            hash ^= round(0, getLong(bytes, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            offset += 8;
+        }
+        if (offset + 4 <= length) {
+            hash ^= (getInt(bytes, offset) & 0xffffffffL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+        while (offset < length) {
+            hash ^= (bytes[offset] & 0xff) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            offset++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    /** Reads 8 bytes little-endian, as xxHash is defined. */
+    private static long getLong(byte[] bytes, int offset) {
+        long value = UNSAFE.getLong(bytes, UnsafeUtil.BYTE_ARRAY_OFFSET + offset);
+        return NATIVE_LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        int value = UNSAFE.getInt(bytes, UnsafeUtil.BYTE_ARRAY_OFFSET + offset);
+        return NATIVE_LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
 }
@@ -0,0 +1,73 @@
+package com.ctriposs.quickcache.utils;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import com.ctriposs.quickcache.IKeyCodec;
+
+/**
+ * The built-in key codecs.
+ *
+ * Apart from {@link #object()}, each writes the key straight into an array of its exact size, the only
+ * allocation made, which the cache keeps as the key of the index.
+ */
+public final class KeyCodecs {
+
+	private KeyCodecs() {
+	}
+
+	private static final IKeyCodec<Object> OBJECT = new IKeyCodec<Object>() {
+		@Override
+		public byte[] encode(Object key) throws IOException {
+			return ByteUtil.ToBytes(key);
+		}
+	};
+
+	/** Encodes a long in 8 bytes, big-endian. */
+	public static final IKeyCodec<Long> LONG = new IKeyCodec<Long>() {
+		@Override
+		public byte[] encode(Long key) {
+			return ByteUtil.toBytes(key.longValue());
+		}
+	};
+
+	/** Encodes an int in 4 bytes, big-endian. */
+	public static final IKeyCodec<Integer> INT = new IKeyCodec<Integer>() {
+		@Override
+		public byte[] encode(Integer key) {
+			return ByteUtil.toBytes(key.intValue());
+		}
+	};
+
+	/** Encodes a UUID in 16 bytes, the most significant bits first. */
+	public static final IKeyCodec<UUID> UUID = new IKeyCodec<UUID>() {
+		@Override
+		public byte[] encode(UUID key) {
+			byte[] bytes = new byte[16];
+			ByteUtil.toBytes(key.getMostSignificantBits(), bytes, 0);
+			ByteUtil.toBytes(key.getLeastSignificantBits(), bytes, 8);
+			return bytes;
+		}
+	};
+
+	/** Encodes the chars in UTF-8, an unpaired surrogate as '?'. */
+	public static final IKeyCodec<CharSequence> UTF8 = new IKeyCodec<CharSequence>() {
+		@Override
+		public byte[] encode(CharSequence key) {
+			byte[] bytes = new byte[ByteUtil.utf8Length(key)];
+			ByteUtil.toUtf8(key, bytes, 0);
+			return bytes;
+		}
+	};
+
+	/**
+	 * Gets the codec of the keys of a cache created without one: strings in the platform charset, byte
+	 * arrays as they are and any other key serialized.
+	 *
+	 * @return the codec
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K> IKeyCodec<K> object() {
+		return (IKeyCodec<K>) OBJECT;
+	}
+}
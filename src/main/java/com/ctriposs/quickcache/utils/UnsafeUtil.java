@@ -0,0 +1,64 @@
+package com.ctriposs.quickcache.utils;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import sun.misc.Unsafe;
+
+public class UnsafeUtil {
+
+	public static final Unsafe UNSAFE = getUnsafe();
+
+	public static final long BYTE_ARRAY_OFFSET = (long) UNSAFE.arrayBaseOffset(byte[].class);
+
+	private static final long BUFFER_ADDRESS_OFFSET = getBufferFieldOffset("address");
+
+	private static final long BUFFER_CAPACITY_OFFSET = getBufferFieldOffset("capacity");
+
+	/** Duplicated to get direct buffers over foreign memory. */
+	private static final ByteBuffer EMPTY_DIRECT_BUFFER = ByteBuffer.allocateDirect(0);
+
+	/**
+	 * Get the address of the memory of a direct buffer.
+	 *
+	 * @param buffer the direct buffer
+	 * @return the address
+	 */
+	public static long getAddress(ByteBuffer buffer) {
+		return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+	}
+
+	/**
+	 * Get a direct buffer over memory it does not own, it must not be used once the memory is freed.
+	 *
+	 * @param address the address of the memory
+	 * @param length the length of the memory
+	 * @return the buffer
+	 */
+	public static ByteBuffer newDirectBuffer(long address, int length) {
+		ByteBuffer buffer = EMPTY_DIRECT_BUFFER.duplicate();
+		UNSAFE.putLong(buffer, BUFFER_ADDRESS_OFFSET, address);
+		UNSAFE.putInt(buffer, BUFFER_CAPACITY_OFFSET, length);
+		buffer.limit(length);
+		return buffer;
+	}
+
+	private static long getBufferFieldOffset(String name) {
+		try {
+			return UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField(name));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Unsafe getUnsafe() {
+		try {
+			Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			return (sun.misc.Unsafe) unsafeField.get(null);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
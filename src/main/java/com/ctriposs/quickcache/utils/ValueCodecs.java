@@ -0,0 +1,147 @@
+package com.ctriposs.quickcache.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ctriposs.quickcache.IValueCodec;
+
+/**
+ * The built-in value codecs.
+ *
+ * Values are encoded straight into the array stored, sized up front, and decoded from a view of the
+ * storage where the storage mode allows. The numeric codecs use no intermediate buffer. {@link #STRING}
+ * copies the bytes out of the view to decode them, and encodes through a temporary array when the
+ * destination has no backing array.
+ */
+public final class ValueCodecs {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ValueCodecs() {
+	}
+
+	/** Encodes a long in 8 bytes, big-endian. */
+	public static final IValueCodec<Long> LONG = new IValueCodec<Long>() {
+		@Override
+		public int size(Long value) {
+			return 8;
+		}
+
+		@Override
+		public void encode(Long value, ByteBuffer dst) {
+			dst.putLong(value.longValue());
+		}
+
+		@Override
+		public Long decode(ByteBuffer src) {
+			return src.getLong(src.position());
+		}
+	};
+
+	/** Encodes an int in 4 bytes, big-endian. */
+	public static final IValueCodec<Integer> INT = new IValueCodec<Integer>() {
+		@Override
+		public int size(Integer value) {
+			return 4;
+		}
+
+		@Override
+		public void encode(Integer value, ByteBuffer dst) {
+			dst.putInt(value.intValue());
+		}
+
+		@Override
+		public Integer decode(ByteBuffer src) {
+			return src.getInt(src.position());
+		}
+	};
+
+	/** Encodes a double in 8 bytes, big-endian. */
+	public static final IValueCodec<Double> DOUBLE = new IValueCodec<Double>() {
+		@Override
+		public int size(Double value) {
+			return 8;
+		}
+
+		@Override
+		public void encode(Double value, ByteBuffer dst) {
+			dst.putDouble(value.doubleValue());
+		}
+
+		@Override
+		public Double decode(ByteBuffer src) {
+			return src.getDouble(src.position());
+		}
+	};
+
+	/** Encodes a string in UTF-8, an unpaired surrogate as '?'. */
+	public static final IValueCodec<String> STRING = new IValueCodec<String>() {
+		@Override
+		public int size(String value) {
+			return ByteUtil.utf8Length(value);
+		}
+
+		@Override
+		public void encode(String value, ByteBuffer dst) {
+			if (dst.hasArray()) {
+				int end = ByteUtil.toUtf8(value, dst.array(), dst.arrayOffset() + dst.position());
+				dst.position(end - dst.arrayOffset());
+			} else {
+				byte[] bytes = new byte[size(value)];
+				ByteUtil.toUtf8(value, bytes, 0);
+				dst.put(bytes);
+			}
+		}
+
+		@Override
+		public String decode(ByteBuffer src) {
+			// the views are read-only, so their arrays are not accessible
+			byte[] bytes = new byte[src.remaining()];
+			src.duplicate().get(bytes);
+			return new String(bytes, UTF_8);
+		}
+	};
+
+	/**
+	 * Gets the codec of a list of records, each prefixed by its size in 4 bytes.
+	 *
+	 * @param recordCodec the codec of a record
+	 * @return the codec
+	 */
+	public static <E> IValueCodec<List<E>> records(final IValueCodec<E> recordCodec) {
+		return new IValueCodec<List<E>>() {
+			@Override
+			public int size(List<E> value) {
+				int size = 0;
+				for (E record : value) {
+					size += 4 + recordCodec.size(record);
+				}
+				return size;
+			}
+
+			@Override
+			public void encode(List<E> value, ByteBuffer dst) {
+				for (E record : value) {
+					dst.putInt(recordCodec.size(record));
+					recordCodec.encode(record, dst);
+				}
+			}
+
+			@Override
+			public List<E> decode(ByteBuffer src) {
+				List<E> records = new ArrayList<E>();
+				ByteBuffer buffer = src.duplicate();
+				while (buffer.remaining() >= 4) {
+					int size = buffer.getInt();
+					ByteBuffer record = buffer.slice();
+					record.limit(size);
+					records.add(recordCodec.decode(record));
+					buffer.position(buffer.position() + size);
+				}
+				return records;
+			}
+		};
+	}
+}
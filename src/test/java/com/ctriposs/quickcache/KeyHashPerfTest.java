@@ -0,0 +1,87 @@
+package com.ctriposs.quickcache;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.ctriposs.quickcache.utils.HashUtil;
+
+@RunWith(Parameterized.class)
+public class KeyHashPerfTest {
+
+    private static final int KEY_COUNT = 100000;
+    private static final int ROUNDS = 20;
+
+    @Parameterized.Parameter(value = 0)
+    public String keyFormat;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> data() {
+        // sequential ids, a typical prefixed id, and longer composite keys
+        Object[][] data = {
+                {"%d"},
+                {"user_%06d"},
+                {"order:%012d:item:%<08d"},
+                {"session/%064d"},
+                {"%256d"}
+        };
+        return Arrays.asList(data);
+    }
+
+    private byte[][] keys() {
+        byte[][] keys = new byte[KEY_COUNT][];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = String.format(keyFormat, i).getBytes();
+        }
+        return keys;
+    }
+
+    @Test
+    public void testHash() {
+        byte[][] keys = keys();
+        long sink = 0;
+        // warm up both
+        for (int r = 0; r < ROUNDS; r++) {
+            for (byte[] key : keys) {
+                sink += HashUtil.JSHash(key) + HashUtil.xxHash64(key);
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (byte[] key : keys) {
+                sink += HashUtil.JSHash(key);
+            }
+        }
+        long jsHash = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (byte[] key : keys) {
+                sink += HashUtil.xxHash64(key);
+            }
+        }
+        long xxHash = System.nanoTime() - start;
+
+        Set<Integer> jsCodes = new HashSet<Integer>();
+        Set<Integer> xxCodes = new HashSet<Integer>();
+        for (byte[] key : keys) {
+            jsCodes.add(HashUtil.JSHash(key));
+            long hash = HashUtil.xxHash64(key);
+            xxCodes.add((int) (hash ^ (hash >>> 32)));
+        }
+
+        System.out.printf("%s (%d bytes): JSHash %.1f ns, %,d distinct codes; xxHash64 %.1f ns, %,d distinct codes (%d)%n",
+                keyFormat, keys[KEY_COUNT - 1].length,
+                1.0 * jsHash / (ROUNDS * KEY_COUNT), jsCodes.size(),
+                1.0 * xxHash / (ROUNDS * KEY_COUNT), xxCodes.size(), sink & 1);
+        assertTrue(xxCodes.size() > KEY_COUNT * 0.99);
+    }
+}
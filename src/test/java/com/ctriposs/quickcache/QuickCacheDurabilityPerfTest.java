@@ -0,0 +1,116 @@
+package com.ctriposs.quickcache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.ctriposs.quickcache.CacheConfig.Durability;
+import com.ctriposs.quickcache.CacheConfig.StorageMode;
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+@RunWith(Parameterized.class)
+public class QuickCacheDurabilityPerfTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "performance/durability/";
+
+    private static final int THREAD_COUNT = 16;
+
+    private static QuickCache<String> cache;
+
+    @Parameterized.Parameter(value = 0)
+    public StorageMode storageMode;
+
+    @Parameterized.Parameter(value = 1)
+    public Durability durability;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> data() {
+        Object[][] data = {
+                {StorageMode.PureFile, Durability.None},
+                {StorageMode.PureFile, Durability.Periodic},
+                {StorageMode.PureFile, Durability.SyncOnPut},
+                {StorageMode.MapFile, Durability.None},
+                {StorageMode.MapFile, Durability.Periodic},
+                {StorageMode.MapFile, Durability.SyncOnPut}
+        };
+        return Arrays.asList(data);
+    }
+
+    @Test
+    public void testMultiThreadPut() throws Exception {
+        // fsync bound modes get far fewer puts done in the same time
+        final int count = durability == Durability.SyncOnPut ? 20 * 1000 : 500 * 1000;
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(64 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setDurability(durability)
+                .setSyncInterval(100)
+                .setSyncBytes(4 * 1024 * 1024);
+        cache = new QuickCache<String>(TEST_DIR, config);
+
+        final byte[] value = new byte[100];
+        ExecutorService service = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final int finalI = i;
+            futures.add(service.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = finalI; j < count; j += THREAD_COUNT) {
+                            cache.put(String.valueOf(j), value);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long duration = System.nanoTime() - start;
+        service.shutdown();
+
+        System.out.printf("%s %s: %,d puts per second with %d threads%n",
+                storageMode, durability, (long) (count * 1e9 / duration), THREAD_COUNT);
+        assertEquals(count, cache.getCount());
+    }
+
+    @After
+    public void close() throws IOException {
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IOException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IOException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {
+                }
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.ctriposs.quickcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+@RunWith(Parameterized.class)
+public class QuickCacheMigrateTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "function/migrate/";
+
+    private static final int KEY_COUNT = 2000;
+
+    private static final int VALUE_SIZE = 4 * 1024;
+
+    private static final long DURATION = 3000;
+
+    private static QuickCache<Integer> cache;
+
+    @Parameterized.Parameter(value = 0)
+    public CacheConfig.StorageMode storageMode;
+
+    @Parameterized.Parameters
+    public static Collection<CacheConfig.StorageMode[]> data() {
+        CacheConfig.StorageMode[][] data = {
+                {CacheConfig.StorageMode.PureFile},
+                {CacheConfig.StorageMode.MapFile},
+                {CacheConfig.StorageMode.OffHeapFile}
+        };
+        return Arrays.asList(data);
+    }
+
+    private static byte[] value(int key) {
+        byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) (key % 251 + 1));
+        return value;
+    }
+
+    @Test
+    public void testReadWhileMigrating() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setMigrateInterval(50)
+                .setDirtyRatioLimit(0.2);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put(i, value(i));
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        futures.add(service.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                Random random = new Random();
+                while (!stop.get()) {
+                    int key = random.nextInt(KEY_COUNT);
+                    cache.put(key, value(key));
+                }
+                return 0;
+            }
+        }));
+        for (int i = 0; i < 3; i++) {
+            futures.add(service.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    Random random = new Random();
+                    int corrupted = 0;
+                    while (!stop.get()) {
+                        int key = random.nextInt(KEY_COUNT);
+                        byte[] value = cache.get(key);
+                        if (value == null || !Arrays.equals(value(key), value)) {
+                            corrupted++;
+                        }
+                    }
+                    return corrupted;
+                }
+            }));
+        }
+
+        Thread.sleep(DURATION);
+        stop.set(true);
+        int corrupted = 0;
+        for (Future<Integer> future : futures) {
+            corrupted += future.get();
+        }
+        service.shutdown();
+
+        assertEquals(0, corrupted);
+        assertTrue(cache.getMigrateCounter() > 0);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            assertTrue(Arrays.equals(value(i), cache.get(i)));
+        }
+    }
+
+    @Test
+    public void testFreeExpiredBlocks() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setExpireInterval(50)
+                .setMigrateInterval(100)
+                // not compacted while its items are expiring one by one
+                .setDirtyRatioLimit(1.0);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        int count = 4 * KEY_COUNT;
+        for (int i = 0; i < count; i++) {
+            // the session like entries fill blocks of their own
+            cache.put(i, value(i), i % 4 == 0 ? -1 : 300);
+        }
+        Thread.sleep(1500);
+
+        assertTrue(cache.getExpiredBlockCounter() > 0);
+        assertEquals(count / 4, cache.getCount());
+        for (int i = 0; i < count; i++) {
+            if (i % 4 == 0) {
+                assertTrue(Arrays.equals(value(i), cache.get(i)));
+            } else {
+                assertNull(cache.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testEvictOldestBlocks() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setMaxTotalCapacity(4 * 16 * 1024 * 1024);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        // about ten blocks worth of values
+        int count = 20 * KEY_COUNT;
+        for (int i = 0; i < count; i++) {
+            cache.put(i, value(i));
+        }
+
+        assertTrue(cache.getEvictedBlockCounter() >= 6);
+        assertEquals(count, cache.getCount() + cache.getEvictedItemCounter());
+        assertNull(cache.get(0));
+        for (int i = count - KEY_COUNT; i < count; i++) {
+            assertTrue(Arrays.equals(value(i), cache.get(i)));
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testEvictLeasedBlock() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setMaxTotalCapacity(4 * 16 * 1024 * 1024);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        cache.put(0, value(0));
+        // the oldest block stays retained while the puts fill the cache over
+        ValueLease lease = cache.lease(0);
+        int count = 20 * KEY_COUNT;
+        for (int i = 1; i < count; i++) {
+            cache.put(i, value(i));
+        }
+
+        assertTrue(cache.getEvictedBlockCounter() >= 6);
+        byte[] leased = new byte[VALUE_SIZE];
+        lease.getBuffer().duplicate().get(leased);
+        assertTrue(Arrays.equals(value(0), leased));
+        lease.close();
+
+        // released, the block is reclaimed by the next evictions
+        for (int i = count; i < 2 * count; i++) {
+            cache.put(i, value(i));
+        }
+        assertEquals(2 * count, cache.getCount() + cache.getEvictedItemCounter());
+        for (int i = 2 * count - KEY_COUNT; i < 2 * count; i++) {
+            assertTrue(Arrays.equals(value(i), cache.get(i)));
+        }
+    }
+
+    @Test
+    public void testAdmitFrequentKeys() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setMaxTotalCapacity(4 * 16 * 1024 * 1024)
+                .setAdmissionSketchSize(100 * KEY_COUNT);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        int key = 0;
+        while (cache.getEvictedBlockCounter() == 0) {
+            cache.put(key, value(key));
+            key++;
+        }
+        // popular keys, put once the cache is full
+        int hotFrom = key;
+        for (int i = 0; i < KEY_COUNT; i++, key++) {
+            cache.get(key);
+            cache.get(key);
+            cache.put(key, value(key));
+        }
+        int hotTo = key;
+        // a scan of keys seen once, larger than the cache
+        for (int i = 0; i < 20 * KEY_COUNT; i++, key++) {
+            cache.put(key, value(key));
+        }
+
+        assertTrue(cache.getRejectedCounter() > 0);
+        for (int i = hotFrom; i < hotTo; i++) {
+            assertTrue(Arrays.equals(value(i), cache.get(i)));
+        }
+    }
+
+    @Test
+    public void testSlicedMigration() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setExpireInterval(50)
+                .setMigrateInterval(1000)
+                .setDirtyRatioLimit(0.2)
+                // a slice moves a few hundred items at most
+                .setMaintenanceSliceTime(1);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        int count = 4 * KEY_COUNT;
+        for (int i = 0; i < count; i++) {
+            cache.put(i, value(i), i % 4 == 1 ? 300 : -1);
+        }
+        for (int i = 2; i < count; i += 4) {
+            cache.delete(i);
+        }
+        Thread.sleep(2500);
+
+        // resumed in between the periodic runs
+        assertTrue(cache.getMigrateCounter() > 2);
+        assertEquals(0, cache.getMigrateErrorCounter());
+        assertEquals(count / 2, cache.getCount());
+        for (int i = 0; i < count; i++) {
+            if (i % 4 == 0 || i % 4 == 3) {
+                assertTrue(Arrays.equals(value(i), cache.get(i)));
+            } else {
+                assertNull(cache.get(i));
+            }
+        }
+    }
+
+    @After
+    public void close() throws IOException {
+        if (cache == null)
+            return;
+
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IOException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IOException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {/**/}
+
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.ctriposs.quickcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.ctriposs.quickcache.CacheConfig.StartMode;
+import com.ctriposs.quickcache.storage.HintFile;
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+@RunWith(Parameterized.class)
+public class QuickCacheRecoveryTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "function/recovery/";
+
+    private static final int COUNT = 200000;
+
+    private static QuickCache<String> cache;
+
+    @Parameterized.Parameter(value = 0)
+    public CacheConfig.StorageMode storageMode;
+
+    @Parameterized.Parameter(value = 1)
+    public int writeBufferSize;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> data() {
+        Object[][] data = {
+                {CacheConfig.StorageMode.PureFile, 1024 * 1024},
+                {CacheConfig.StorageMode.PureFile, 0},
+                {CacheConfig.StorageMode.MapFile, 0}
+        };
+
+        return Arrays.asList(data);
+    }
+
+    private QuickCache<String> cache(StartMode startMode) throws IOException {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setCapacityPerBlock(16 * 1024 * 1024)
+                .setInitialNumberOfBlocks(2)
+                .setWriteBufferSize(writeBufferSize);
+        config.setStartMode(startMode);
+        return new QuickCache<String>(TEST_DIR, config);
+    }
+
+    private void fill() throws IOException {
+        cache = cache(StartMode.ClearOldFile);
+        byte[] value = new byte[200];
+        for (int i = 0; i < COUNT; i++) {
+            Arrays.fill(value, (byte) i);
+            cache.put(String.valueOf(i), value);
+        }
+        for (int i = 0; i < COUNT; i += 10) {
+            cache.delete(String.valueOf(i));
+        }
+        cache.put("1", "updated".getBytes());
+        cache.close();
+    }
+
+    private void verify() throws IOException {
+        cache = cache(StartMode.RecoveryFromFile);
+        assertEquals(COUNT - COUNT / 10, cache.getCount());
+        assertEquals("updated", new String(cache.get("1")));
+        for (int i = 2; i < COUNT; i++) {
+            byte[] value = cache.get(String.valueOf(i));
+            if (i % 10 == 0) {
+                assertNull(value);
+            } else {
+                assertEquals(200, value.length);
+                assertEquals((byte) i, value[199]);
+            }
+        }
+    }
+
+    @Test
+    public void testRecoveryFromHints() throws Exception {
+        fill();
+        boolean hinted = false;
+        for (File file : FileUtil.listFiles(new File(TEST_DIR))) {
+            hinted |= file.getName().endsWith(HintFile.HINT_FILE_SUFFIX);
+        }
+        assertTrue(hinted);
+        verify();
+    }
+
+    @Test
+    public void testRecoveryWithoutHints() throws Exception {
+        fill();
+        for (File file : FileUtil.listFiles(new File(TEST_DIR))) {
+            if (file.getName().endsWith(HintFile.HINT_FILE_SUFFIX)) {
+                FileUtil.forceDelete(file);
+            }
+        }
+        verify();
+    }
+
+    @After
+    public void close() throws IOException {
+        if (cache == null)
+            return;
+
+        try {
+            cache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        } catch (IOException e) {
+            System.gc();
+            try {
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            } catch (IOException e1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e2) {/**/}
+
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+}
@@ -7,8 +7,21 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Test;
@@ -17,6 +30,8 @@ import org.junit.runners.Parameterized;
 
 import com.ctriposs.quickcache.util.TestUtil;
 import com.ctriposs.quickcache.utils.FileUtil;
+import com.ctriposs.quickcache.utils.KeyCodecs;
+import com.ctriposs.quickcache.utils.ValueCodecs;
 
 @RunWith(Parameterized.class)
 public class QuickCacheUnitTest {
@@ -28,12 +43,18 @@ public class QuickCacheUnitTest {
     @Parameterized.Parameter(value = 0)
     public CacheConfig.StorageMode storageMode;
 
+    @Parameterized.Parameter(value = 1)
+    public CacheConfig.IndexMode indexMode;
+
     @Parameterized.Parameters
-    public static Collection<CacheConfig.StorageMode[]> data() {
-        CacheConfig.StorageMode[][] data = {
-                {CacheConfig.StorageMode.PureFile},
-                {CacheConfig.StorageMode.MapFile},
-                {CacheConfig.StorageMode.OffHeapFile}
+    public static Collection<Object[]> data() {
+        Object[][] data = {
+                {CacheConfig.StorageMode.PureFile, CacheConfig.IndexMode.Heap},
+                {CacheConfig.StorageMode.MapFile, CacheConfig.IndexMode.Heap},
+                {CacheConfig.StorageMode.OffHeapFile, CacheConfig.IndexMode.Heap},
+                {CacheConfig.StorageMode.PureFile, CacheConfig.IndexMode.OffHeap},
+                {CacheConfig.StorageMode.MapFile, CacheConfig.IndexMode.OffHeap},
+                {CacheConfig.StorageMode.OffHeapFile, CacheConfig.IndexMode.OffHeap}
         };
 
         return Arrays.asList(data);
@@ -41,7 +62,8 @@ public class QuickCacheUnitTest {
 
     public QuickCache<Integer> cache() throws IOException {
         CacheConfig config = new CacheConfig();
-        config.setStorageMode(storageMode);
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode);
         cache = new QuickCache<Integer>(TEST_DIR, config);
         cache.put(0, "A".getBytes());
         cache.put(1, "B".getBytes());
@@ -93,6 +115,376 @@ public class QuickCacheUnitTest {
         assertFalse(cache.contains(6));
     }
 
+    @Test
+    public void testGetIntoBuffer() throws Exception {
+        cache = cache();
+        ByteBuffer heap = ByteBuffer.allocate(8);
+        heap.put((byte) 'X');
+        assertEquals(1, cache.get(1, heap));
+        assertEquals(2, heap.position());
+        assertEquals('B', heap.get(1));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        assertEquals(1, cache.get(2, direct));
+        assertEquals('C', direct.get(0));
+        assertEquals(-1, cache.get(6, direct));
+
+        // too small, nothing copied
+        ByteBuffer full = ByteBuffer.allocate(0);
+        assertEquals(1, cache.get(3, full));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        cache = cache();
+        Map<Integer, byte[]> entries = new HashMap<Integer, byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put(i, new byte[2048]);
+        }
+        entries.put(0, "W".getBytes());
+        // larger than a batch, so it is split
+        cache.putAll(entries);
+        assertEquals(1000, cache.getCount());
+        assertEquals("W", new String(cache.get(0)));
+
+        Map<Integer, byte[]> values = cache.getAll(Arrays.asList(0, 1, 999, 1000));
+        assertEquals(3, values.size());
+        assertEquals("W", new String(values.get(0)));
+        assertEquals(2048, values.get(999).length);
+        assertFalse(values.containsKey(1000));
+
+        cache.deleteAll(Arrays.asList(0, 1, 1000));
+        assertEquals(998, cache.getCount());
+        assertNull(cache.get(0));
+        assertEquals(1, cache.getAll(Arrays.asList(1, 2)).size());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        cache = cache();
+        AsyncCache<Integer> asyncCache = new AsyncCache<Integer>(cache);
+        List<Future<byte[]>> gets = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 1000; i++) {
+            asyncCache.putAsync(i, String.valueOf(i).getBytes());
+            gets.add(asyncCache.getAsync(i));
+        }
+        // applied in the order submitted
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), new String(gets.get(i).get()));
+        }
+        final AtomicReference<byte[]> result = new AtomicReference<byte[]>("X".getBytes());
+        final CountDownLatch notified = new CountDownLatch(1);
+        asyncCache.deleteAsync(0).get();
+        asyncCache.getAsync(0, new ICacheCallback<byte[]>() {
+            @Override
+            public void onSuccess(byte[] value) {
+                result.set(value);
+                notified.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        notified.await();
+        assertNull(result.get());
+        asyncCache.close();
+        assertEquals("1", new String(cache.get(1)));
+    }
+
+    @Test
+    public void testLoader() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setRefreshAheadTime(500);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        final AtomicInteger loads = new AtomicInteger();
+        final ICacheLoader<Integer> loader = new ICacheLoader<Integer>() {
+            @Override
+            public byte[] load(Integer key) throws Exception {
+                Thread.sleep(100);
+                return String.valueOf(loads.incrementAndGet()).getBytes();
+            }
+        };
+        // concurrent misses share a single load
+        List<Future<byte[]>> gets = new ArrayList<Future<byte[]>>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            gets.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return cache.get(0, loader, 600);
+                }
+            }));
+        }
+        for (Future<byte[]> get : gets) {
+            assertEquals("1", new String(get.get()));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+
+        // within 500ms of expiring, reloaded in the background
+        Thread.sleep(200);
+        assertEquals("1", new String(cache.get(0, loader, 600)));
+        Thread.sleep(300);
+        assertEquals(2, loads.get());
+        assertEquals("2", new String(cache.get(0)));
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setWriteBehindQueueSize(16);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        // far more than queued at once, so puts wait for the appender
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, String.valueOf(i).getBytes());
+            // visible before applied
+            assertEquals(String.valueOf(i), new String(cache.get(i)));
+        }
+        cache.delete(0);
+        assertNull(cache.get(0));
+        assertFalse(cache.contains(0));
+        cache.flush();
+        assertEquals(999, cache.getCount());
+        assertEquals("999", new String(cache.get(999)));
+        assertEquals(0, cache.getWriteBehindErrorCounter());
+    }
+
+    @Test(timeout = 60000)
+    public void testClearWriteBehind() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setWriteBehindQueueSize(16);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        Future<Void> writer = service.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < 20000; i++) {
+                    cache.put(i % 1000, String.valueOf(i).getBytes());
+                }
+                done.countDown();
+                return null;
+            }
+        });
+        // cleared while the appender is polling and applying
+        while (done.getCount() > 0) {
+            cache.clear();
+        }
+        writer.get();
+        service.shutdown();
+
+        // the appender is still running, and nothing cleared comes back
+        cache.flush();
+        cache.clear();
+        cache.flush();
+        assertEquals(0, cache.getCount());
+        cache.put(0, "A".getBytes());
+        cache.flush();
+        assertEquals(1, cache.getCount());
+        assertEquals("A", new String(cache.get(0)));
+    }
+
+    @Test
+    public void testKeyCodec() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode);
+        cache = null;
+        QuickCache<Long> longCache = new QuickCache<Long>(TEST_DIR, config, KeyCodecs.LONG);
+        try {
+            for (long i = 0; i < 1000; i++) {
+                longCache.put(i << 32, String.valueOf(i).getBytes());
+            }
+            assertEquals("7", new String(longCache.get(7L << 32)));
+            assertNull(longCache.get(7L));
+            assertTrue(longCache.delete(7L << 32) == null && !longCache.contains(7L << 32));
+        } finally {
+            longCache.close();
+            FileUtil.deleteDirectory(new File(TEST_DIR));
+        }
+
+        String text = "key-\u00e9\u4e2d\ud83d\ude00";
+        assertTrue(Arrays.equals(text.getBytes("UTF-8"), KeyCodecs.UTF8.encode(text)));
+        assertTrue(Arrays.equals(new byte[] {'a', '?'}, KeyCodecs.UTF8.encode("a\ud83d")));
+        assertEquals(16, KeyCodecs.UUID.encode(UUID.randomUUID()).length);
+    }
+
+    @Test
+    public void testTypedValues() throws Exception {
+        cache = cache();
+        TypedQuickCache<Integer, Long> longs = new TypedQuickCache<Integer, Long>(cache, ValueCodecs.LONG);
+        longs.put(10, Long.MAX_VALUE);
+        assertEquals(Long.valueOf(Long.MAX_VALUE), longs.get(10));
+        assertNull(longs.get(11));
+
+        TypedQuickCache<Integer, String> strings = new TypedQuickCache<Integer, String>(cache, ValueCodecs.STRING);
+        strings.put(12, "caf\u00e9");
+        assertEquals("caf\u00e9", strings.get(12));
+        assertEquals(5, cache.get(12).length);
+
+        TypedQuickCache<Integer, List<String>> records = new TypedQuickCache<Integer, List<String>>(cache,
+                ValueCodecs.records(ValueCodecs.STRING));
+        records.put(13, Arrays.asList("a", "", "bc"));
+        assertEquals(Arrays.asList("a", "", "bc"), records.get(13));
+        records.delete(13);
+        assertNull(records.get(13));
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        cache = cache();
+        assertNull(cache.lease(6));
+        ValueLease lease = cache.lease(0);
+        ByteBuffer buffer = lease.getBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(1, buffer.remaining());
+        assertEquals('A', buffer.get(0));
+        // a new value is appended elsewhere, the leased one stays as is
+        cache.put(0, "W".getBytes());
+        assertEquals('A', buffer.get(0));
+        lease.close();
+        lease.close();
+        assertEquals("W", new String(cache.get(0)));
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setExpireInterval(50);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "T".getBytes(), i % 2 == 0 ? 200 : 60 * 1000);
+        }
+        // overwritten without a time to idle, the scheduled expiry no longer applies
+        cache.put(0, "P".getBytes());
+        Thread.sleep(1000);
+        // expired entries are gone from the index without a lookup
+        assertEquals(501, cache.getCount());
+        assertEquals("P", new String(cache.get(0)));
+        assertNull(cache.get(2));
+        assertEquals("T", new String(cache.get(1)));
+    }
+
+    @Test
+    public void testExpireRescheduled() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setExpireInterval(50);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        // a hot key rewritten keeps a single deadline
+        for (int i = 0; i < 1000; i++) {
+            cache.put(0, "H".getBytes(), 24 * 60 * 60 * 1000L);
+        }
+        assertEquals(1, cache.getScheduledCount());
+
+        // a shorter time to idle brings the deadline forward
+        cache.put(0, "S".getBytes(), 200);
+        // a longer one is scheduled once the earlier deadline comes due
+        cache.put(1, "L".getBytes(), 200);
+        cache.put(1, "L".getBytes(), 60 * 1000);
+        // deleted, then put again with a time to idle
+        cache.put(2, "D".getBytes(), 60 * 1000);
+        cache.delete(2);
+        cache.put(2, "D".getBytes(), 200);
+        // no longer expiring
+        cache.put(3, "N".getBytes(), 200);
+        cache.put(3, "N".getBytes());
+        Thread.sleep(1000);
+
+        assertEquals(2, cache.getCount());
+        assertNull(cache.get(0));
+        assertEquals("L", new String(cache.get(1)));
+        assertNull(cache.get(2));
+        assertEquals("N", new String(cache.get(3)));
+        assertEquals(1, cache.getScheduledCount());
+    }
+
+    @Test
+    public void testConcurrencyLevel() throws Exception {
+        cache = null;
+        for (int concurrencyLevel : new int[] {1, 3, 64}) {
+            CacheConfig config = new CacheConfig();
+            config.setStorageMode(storageMode)
+                    .setIndexMode(indexMode)
+                    .setConcurrencyLevel(concurrencyLevel)
+                    .setExpireInterval(50);
+            QuickCache<Integer> segmented = new QuickCache<Integer>(TEST_DIR, config);
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    segmented.put(i, "T".getBytes(), i % 2 == 0 ? 200 : 60 * 1000);
+                }
+                long itemSize = segmented.getUsedSize() / 1000;
+                assertEquals(1000 * itemSize, segmented.getUsedSize());
+                Thread.sleep(1000);
+                // each segment expired its own keys, and its own usage
+                assertEquals(500, segmented.getCount());
+                assertEquals(500 * itemSize, segmented.getUsedSize());
+                assertNull(segmented.get(2));
+                assertEquals("T", new String(segmented.get(1)));
+            } finally {
+                segmented.close();
+                FileUtil.deleteDirectory(new File(TEST_DIR));
+            }
+        }
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStorageMode(storageMode)
+                .setIndexMode(indexMode)
+                .setNearCacheSize(1024 * 1024);
+        cache = new QuickCache<Integer>(TEST_DIR, config);
+        cache.put(0, "A".getBytes());
+        assertEquals("A", new String(cache.get(0)));
+        assertEquals("A", new String(cache.get(0)));
+        assertEquals(1, cache.getNearHitCounter());
+        assertEquals(1, cache.getNearMissCounter());
+
+        // the returned value is a copy
+        cache.get(0)[0] = 'X';
+        assertEquals("A", new String(cache.get(0)));
+        cache.put(0, "B".getBytes());
+        assertEquals("B", new String(cache.get(0)));
+        cache.delete(0);
+        assertNull(cache.get(0));
+
+        cache.put(1, "C".getBytes(), 100);
+        assertEquals("C", new String(cache.get(1)));
+        Thread.sleep(300);
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testManyKeys() throws Exception {
+        cache = cache();
+        // enough keys to resize the index and to shift slots on delete
+        for (int i = 0; i < 100000; i++) {
+            cache.put(i, String.valueOf(i).getBytes());
+        }
+        for (int i = 0; i < 100000; i += 2) {
+            cache.delete(i);
+        }
+        assertEquals(50000, cache.getCount());
+        for (int i = 0; i < 100000; i++) {
+            if (i % 2 == 0) {
+                assertNull(cache.get(i));
+            } else {
+                assertEquals(String.valueOf(i), new String(cache.get(i)));
+            }
+        }
+    }
+
     @After
     public void close() throws IOException {
         if (cache == null)
@@ -0,0 +1,127 @@
+package com.ctriposs.quickcache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.quickcache.CacheConfig.StorageMode;
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+public class StorageBlockTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/storageblock/";
+
+    private static final int CAPACITY = 16 * 1024 * 1024;
+
+    private StorageBlock block;
+
+    @After
+    public void close() throws IOException {
+        if (block != null) {
+            block.close();
+            block = null;
+        }
+        FileUtil.deleteDirectory(new File(TEST_DIR));
+    }
+
+    private static byte[] readFile(File file, long position, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            }
+            return buffer.array();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testSyncPureFile() throws IOException {
+        block = new StorageBlock(TEST_DIR, 0, CAPACITY, StorageMode.PureFile, StorageManager.DEFAULT_WRITE_BUFFER_SIZE);
+        byte[] key = "key".getBytes();
+        byte[] value = "value".getBytes();
+        Pointer first = block.store(key, value, -1);
+        block.sync();
+
+        // the synced item is in the file, not only in the write buffer
+        byte[] bytes = readFile(block.getFile(), first.getMetaOffset(), Meta.META_SIZE + key.length + value.length);
+        ByteBuffer item = ByteBuffer.wrap(bytes);
+        assertEquals(-1, item.getLong(Meta.TTL_OFFSET));
+        assertEquals(key.length, item.getInt(Meta.KEY_SIZE_OFFSET));
+        assertEquals(value.length, item.getInt(Meta.VALUE_SIZE_OFFSET));
+        byte[] stored = new byte[key.length + value.length];
+        item.position(Meta.META_SIZE);
+        item.get(stored);
+        assertArrayEquals("keyvalue".getBytes(), stored);
+
+        // a later item of the same window is written by the next sync
+        byte[] other = "other".getBytes();
+        Pointer second = block.store(key, other, -1);
+        block.sync();
+        bytes = readFile(block.getFile(), second.getMetaOffset() + Meta.META_SIZE + key.length, other.length);
+        assertArrayEquals(other, bytes);
+    }
+
+    @Test
+    public void testHintAfterData() throws IOException {
+        block = new StorageBlock(TEST_DIR, 0, CAPACITY, StorageMode.PureFile, StorageManager.DEFAULT_WRITE_BUFFER_SIZE);
+        byte[] key = "key".getBytes();
+        byte[] value = "value".getBytes();
+        Pointer pointer = block.store(key, value, -1);
+        block.writeHint();
+
+        // the items a hint describes are written before it
+        assertTrue(HintFile.of(block.getFile()).exists());
+        byte[] bytes = readFile(block.getFile(), pointer.getMetaOffset() + Meta.META_SIZE, key.length + value.length);
+        assertArrayEquals("keyvalue".getBytes(), bytes);
+    }
+
+    @Test
+    public void testStoreAll() throws IOException {
+        Object[][] modes = {
+                {StorageMode.PureFile, 0},
+                {StorageMode.PureFile, StorageManager.DEFAULT_WRITE_BUFFER_SIZE},
+                {StorageMode.MapFile, 0},
+                {StorageMode.OffHeapFile, 0}
+        };
+        for (Object[] mode : modes) {
+            block = new StorageBlock(TEST_DIR, 0, CAPACITY, (StorageMode) mode[0], (Integer) mode[1]);
+            // more than the per thread encode buffer, with an item larger than it
+            int count = 100;
+            byte[][] keys = new byte[count][];
+            byte[][] values = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ("key" + i).getBytes();
+                values[i] = new byte[i == 50 ? 100 * 1024 : 1000 + i];
+                Arrays.fill(values[i], (byte) i);
+            }
+            block.store("first".getBytes(), "item".getBytes(), -1);
+            Pointer[] pointers = block.storeAll(keys, values, 1000);
+            Pointer last = block.store("last".getBytes(), "item".getBytes(), -1);
+            block.flush();
+
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(keys[i], block.retrieveKey(pointers[i]));
+                assertArrayEquals(values[i], block.retrieve(pointers[i]));
+                Meta meta = block.readMeta(pointers[i].getMetaOffset());
+                assertEquals(1000, meta.getTtl());
+                assertEquals(values[i].length, meta.getValueSize());
+            }
+            assertArrayEquals("item".getBytes(), block.retrieve(last));
+            close();
+        }
+    }
+}
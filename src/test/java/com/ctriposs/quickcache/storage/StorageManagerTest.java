@@ -0,0 +1,133 @@
+package com.ctriposs.quickcache.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.ctriposs.quickcache.CacheConfig.Durability;
+import com.ctriposs.quickcache.CacheConfig.StartMode;
+import com.ctriposs.quickcache.CacheConfig.StorageMode;
+import com.ctriposs.quickcache.IStorage;
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+public class StorageManagerTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/storagemanager/";
+
+    private static final int CAPACITY_PER_BLOCK = 256 * 1024;
+
+    private static final int MAX_BLOCK_COUNT = 8;
+
+    private static final int ROUNDS = 20;
+
+    private StorageManager storageManager;
+
+    @After
+    public void close() throws IOException {
+        if (storageManager != null) {
+            storageManager.close();
+            storageManager = null;
+        }
+        FileUtil.deleteDirectory(new File(TEST_DIR));
+    }
+
+    private static int dataFileCount() {
+        int count = 0;
+        for (File file : FileUtil.listFiles(new File(TEST_DIR))) {
+            if (file.getName().endsWith(IStorage.DATA_FILE_SUFFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testBoundedBlockCount() throws Exception {
+        // the bound is reached by concurrent rollovers, a few times over
+        for (int round = 0; round < ROUNDS; round++) {
+            fill();
+            close();
+        }
+    }
+
+    @Test
+    public void testBoundBelowInitialBlocks() throws Exception {
+        storageManager = open(StartMode.ClearOldFile, 3);
+        assertTrue(dataFileCount() <= 3);
+        assertTrue(storageManager.getTotalBlockCount() <= 3);
+        byte[] value = new byte[16 * 1024];
+        int stored = 0;
+        while (storageManager.store(("key" + stored).getBytes(), value, -1, true) != null) {
+            stored++;
+        }
+        assertTrue(stored > 0);
+        assertTrue(storageManager.getTotalBlockCount() <= 3);
+        close();
+
+        // recovered within a smaller bound, the files beyond it are dropped
+        storageManager = open(StartMode.ClearOldFile, MAX_BLOCK_COUNT);
+        for (int i = 0; storageManager.store(("key" + i).getBytes(), value, -1, true) != null; i++) {
+        }
+        storageManager.close();
+        assertEquals(MAX_BLOCK_COUNT, dataFileCount());
+        storageManager = open(StartMode.RecoveryFromFile, 3);
+        assertTrue(dataFileCount() <= 3);
+        assertTrue(storageManager.getTotalBlockCount() <= 3);
+    }
+
+    private StorageManager open(StartMode startMode, int maxBlockCount) throws IOException {
+        return new StorageManager(TEST_DIR, CAPACITY_PER_BLOCK, StorageManager.DEFAULT_INITIAL_NUMBER_OF_BLOCKS,
+                StorageMode.PureFile, 0, 0.5, startMode, 0, Durability.None, 0, 16,
+                (long) maxBlockCount * CAPACITY_PER_BLOCK);
+    }
+
+    private void fill() throws Exception {
+        storageManager = new StorageManager(TEST_DIR, CAPACITY_PER_BLOCK, 1, StorageMode.PureFile, 0,
+                0.5, StartMode.ClearOldFile, 0, Durability.None, 0, 16,
+                (long) MAX_BLOCK_COUNT * CAPACITY_PER_BLOCK);
+        // writers of every ttl class, each class rolling over its own active blocks
+        final long[] ttls = {-1, 1000, 5 * 60 * 1000, 30 * 60 * 1000, 2 * 60 * 60 * 1000, 7 * 24 * 60 * 60 * 1000};
+        final byte[] value = new byte[16 * 1024];
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService service = Executors.newFixedThreadPool(4 * ttls.length);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < 4 * ttls.length; t++) {
+            final long ttl = ttls[t % ttls.length];
+            final byte[] key = ("key" + t).getBytes();
+            futures.add(service.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int stored = 0;
+                    while (storageManager.store(key, value, ttl, true) != null) {
+                        stored++;
+                    }
+                    return stored;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Integer> future : futures) {
+            future.get();
+        }
+        service.shutdown();
+
+        // the preparer may still be creating a block
+        Thread.sleep(20);
+        assertTrue(dataFileCount() <= MAX_BLOCK_COUNT);
+        assertTrue(storageManager.getTotalBlockCount() <= MAX_BLOCK_COUNT);
+    }
+}
@@ -0,0 +1,195 @@
+package com.ctriposs.quickcache.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ctriposs.quickcache.util.TestUtil;
+import com.ctriposs.quickcache.utils.FileUtil;
+
+public class WriteBufferTest {
+
+    private static final String TEST_DIR = TestUtil.TEST_BASE_DIR + "unit/writebuffer/";
+
+    private static final int WINDOW_SIZE = 1024;
+
+    private RandomAccessFile raf;
+
+    private File file;
+
+    private WriteBuffer writeBuffer;
+
+    @Before
+    public void open() throws IOException {
+        new File(TEST_DIR).mkdirs();
+        file = new File(TEST_DIR, "test.data");
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(16 * WINDOW_SIZE);
+        writeBuffer = new WriteBuffer(raf.getChannel(), WriteBuffer.WINDOWS * WINDOW_SIZE);
+    }
+
+    @After
+    public void close() throws IOException {
+        writeBuffer.reset();
+        raf.close();
+        FileUtil.deleteDirectory(new File(TEST_DIR));
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i * 31 + 1);
+        }
+        return bytes;
+    }
+
+    /** Reads the file through a channel of its own, bypassing the buffer. */
+    private byte[] readFile(long position, int length) throws IOException {
+        RandomAccessFile reader = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && reader.getChannel().read(buffer, position + buffer.position()) >= 0) {
+            }
+            return buffer.array();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private byte[] get(long position, int length) throws IOException {
+        byte[] dest = new byte[length];
+        writeBuffer.get(position, dest, 0, length);
+        return dest;
+    }
+
+    @Test
+    public void testGetUnflushed() throws IOException {
+        byte[] source = bytes(100, 7);
+        writeBuffer.put(200, source, 0, source.length);
+
+        // not in the file yet, read from the window
+        assertArrayEquals(new byte[source.length], readFile(200, source.length));
+        assertArrayEquals(source, get(200, source.length));
+        ByteBuffer dest = ByteBuffer.allocate(source.length);
+        writeBuffer.get(200, dest);
+        assertArrayEquals(source, dest.array());
+
+        writeBuffer.flush();
+        assertArrayEquals(source, readFile(200, source.length));
+        assertArrayEquals(source, get(200, source.length));
+    }
+
+    @Test
+    public void testCrossWindow() throws IOException {
+        // from the end of the first window to the start of the third
+        byte[] source = bytes(WINDOW_SIZE + 200, 3);
+        int position = WINDOW_SIZE - 100;
+        writeBuffer.put(position, source, 0, source.length);
+
+        assertArrayEquals(source, get(position, source.length));
+        ByteBuffer dest = ByteBuffer.allocateDirect(source.length);
+        writeBuffer.get(position, dest);
+        byte[] got = new byte[source.length];
+        dest.flip();
+        dest.get(got);
+        assertArrayEquals(source, got);
+
+        // the second window is complete, written by the put
+        assertArrayEquals(bytes(WINDOW_SIZE, 3 + 100 * 31), readFile(WINDOW_SIZE, WINDOW_SIZE));
+        writeBuffer.flush();
+        assertArrayEquals(source, readFile(position, source.length));
+    }
+
+    @Test
+    public void testRotateWindow() throws IOException {
+        byte[] first = bytes(10, 1);
+        writeBuffer.put(0, first, 0, first.length);
+        // the ring slot of the first window is taken by a newer window
+        byte[] later = bytes(10, 2);
+        writeBuffer.put(WriteBuffer.WINDOWS * WINDOW_SIZE, later, 0, later.length);
+
+        assertArrayEquals(first, readFile(0, first.length));
+        assertArrayEquals(first, get(0, first.length));
+        assertArrayEquals(later, get(WriteBuffer.WINDOWS * WINDOW_SIZE, later.length));
+
+        // a late writer to the rotated window writes to the file
+        byte[] late = bytes(10, 3);
+        writeBuffer.put(first.length, late, 0, late.length);
+        assertArrayEquals(late, readFile(first.length, late.length));
+    }
+
+    @Test
+    public void testSyncPartialWindow() throws IOException {
+        byte[] first = bytes(40, 5);
+        writeBuffer.put(100, first, 0, first.length);
+        writeBuffer.sync();
+        assertArrayEquals(first, readFile(100, first.length));
+
+        // only what was copied since is written, below and above the last range
+        byte[] below = bytes(20, 6);
+        byte[] above = bytes(30, 8);
+        writeBuffer.put(10, below, 0, below.length);
+        writeBuffer.put(300, above, 0, above.length);
+        writeBuffer.sync();
+        assertArrayEquals(below, readFile(10, below.length));
+        assertArrayEquals(above, readFile(300, above.length));
+        assertArrayEquals(first, readFile(100, first.length));
+
+        // the window stays buffered after a sync
+        byte[] next = bytes(20, 9);
+        writeBuffer.put(140, next, 0, next.length);
+        assertArrayEquals(next, get(140, next.length));
+        writeBuffer.sync();
+        assertArrayEquals(next, readFile(140, next.length));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final int threads = 8;
+        final int slice = 16;
+        final int length = WriteBuffer.WINDOWS * WINDOW_SIZE;
+        final byte[] expected = bytes(length, 11);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            futures.add(service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    // the slices of all windows interleaved between the writers, in reverse for half of them
+                    int slices = length / slice;
+                    for (int i = 0; i < slices / threads; i++) {
+                        int n = first % 2 == 0 ? i * threads + first : (slices / threads - 1 - i) * threads + first;
+                        writeBuffer.put(n * slice, expected, n * slice, slice);
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        service.shutdown();
+
+        // every window was completed, and written by the writer completing it
+        assertArrayEquals(expected, readFile(0, length));
+        assertArrayEquals(expected, get(0, length));
+    }
+}
@@ -0,0 +1,18 @@
+package com.ctriposs.quickcache.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HashUtilTest {
+
+    @Test
+    public void testXxHash64() {
+        // the reference vectors of xxHash64 with seed 0
+        assertEquals(0xEF46DB3751D8E999L, HashUtil.xxHash64("".getBytes()));
+        assertEquals(0xD24EC4F1A98C6E5BL, HashUtil.xxHash64("a".getBytes()));
+        assertEquals(0x44BC2CF5AD770999L, HashUtil.xxHash64("abc".getBytes()));
+        // 39 bytes, a 32 byte stripe then the 4 and 1 byte tails
+        assertEquals(0xFBCEA83C8A378BF1L, HashUtil.xxHash64("Nobody inspects the spammish repetition".getBytes()));
+    }
+}